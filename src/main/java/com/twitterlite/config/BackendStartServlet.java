@@ -0,0 +1,27 @@
+package com.twitterlite.config;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.backends.BackendServiceFactory;
+import com.google.inject.Singleton;
+import com.twitterlite.managers.impl.FollowGraph;
+
+/*
+ * The request sent by App Engine when a backend instance starts,
+ * the message-backend loads the follow graph used by the fan-out tasks
+ */
+@Singleton
+public class BackendStartServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		if ("message-backend".equals(BackendServiceFactory.getBackendService().getCurrentBackend()))
+			FollowGraph.get().loadSnapshot();
+		resp.setStatus(HttpServletResponse.SC_OK);
+	}
+}
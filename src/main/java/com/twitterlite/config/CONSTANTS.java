@@ -4,5 +4,80 @@ public class CONSTANTS {
 	public static class MEMCACHE {
 		public static final String CURRENT_USER_KEY = "twitterlite.config.CONSTANTS.MEMCACHE.CURRENT_USER_KEY";
 		public static final int SESSION_EXPIRATION_SEC = 24 * 3600; // 1 day in sec
+		public static final String ENTITY_VERSION_KEY = "twitterlite.config.CONSTANTS.MEMCACHE.ENTITY_VERSION_KEY";
+		public static final String TIMELINE_PAGE_KEY = "twitterlite.config.CONSTANTS.MEMCACHE.TIMELINE_PAGE_KEY";
+		public static final String TIMELINE_LOCK_KEY = "twitterlite.config.CONSTANTS.MEMCACHE.TIMELINE_LOCK_KEY";
+		public static final String COUNTER_DELTA_KEY = "twitterlite.config.CONSTANTS.MEMCACHE.COUNTER_DELTA_KEY";
+		public static final String COUNTER_TOTAL_KEY = "twitterlite.config.CONSTANTS.MEMCACHE.COUNTER_TOTAL_KEY";
+		public static final String COUNTER_FLUSH_KEY = "twitterlite.config.CONSTANTS.MEMCACHE.COUNTER_FLUSH_KEY";
+	}
+	public static class TIMELINE_CACHE {
+		// the first pages are cached at the maximum page size of the api
+		public static final int PAGE_SIZE = 25;
+		// bounds the delay of the messages of the fan-out on read users
+		public static final int EXPIRATION_SEC = 30;
+		// a page built before an invalidation is not stored during this time
+		public static final long NO_READD_MILLIS = 2 * 1000;
+		public static final long LOCK_MILLIS = 5 * 1000;
+		public static final long LOCK_WAIT_MILLIS = 300;
+		public static final long LOCK_POLL_MILLIS = 50;
+	}
+	public static class ENTITY_CACHE {
+		// number of users and messages kept in each instance
+		public static final int SIZE = 10000;
+		public static final long TTL_MILLIS = 60 * 1000;
+		// an entity updated on another instance may be served for this time
+		public static final long REVALIDATE_MILLIS = 2 * 1000;
+	}
+	public static class SESSION {
+		// the sessions are also cached in the instance for this time
+		public static final long LOCAL_CACHE_MILLIS = 10 * 1000;
+		public static final int LOCAL_CACHE_SIZE = 10000;
+		// the header of the signed session token returned by the login
+		public static final String TOKEN_HEADER = "X-Session-Token";
+		// the revoked tokens are read again after this time
+		public static final long REVOCATION_REFRESH_MILLIS = 30 * 1000;
+	}
+	public static class DATASTORE {
+		// maximum number of entity groups in a cross group transaction
+		public static final int XG_MAX_ENTITY_GROUPS = 5;
+	}
+	public static class FOLLOWERS {
+		// no follower is added to a shard which has this number of followers, the number of shards of the followers
+		// of a user is doubled when the split needs it or when a follow had to retry because of its shard
+		public static final int SHARD_CAPACITY = 5000;
+		public static final int MAX_SHARDS = 4096;
+		// a shard is split on the backend by the follow which brought it to SPLIT_SIZE, then every SPLIT_STEP follows
+		// while it stays above; a follow which finds its shard at SHARD_CAPACITY splits it itself
+		public static final int SPLIT_SIZE = 4500;
+		public static final int SPLIT_STEP = 100;
+		// the number of shards read per batch by a page of followers
+		public static final int PAGE_SHARDS = 4;
+	}
+	public static class COUNTERS {
+		public static final int SHARDS = 4;
+		// the deltas buffered in memcache are written to the shards at the end of each period
+		public static final long FLUSH_MILLIS = 10 * 1000;
+		// the sums of the shards are cached for this time
+		public static final int TOTAL_EXPIRATION_SEC = 5 * 60;
+		// a sum read before a flush is not stored during this time
+		public static final long NO_READD_MILLIS = 2 * 1000;
+	}
+	public static class FAN_OUT {
+		// number of timeline transactions of a fan-out run together, and number of rounds
+		// retrying the contended ones before the task fails
+		public static final int TIMELINE_WRITE_CONCURRENCY = 100;
+		public static final int TIMELINE_WRITE_ROUNDS = 5;
+		// The messages of the senders having at least this number of followers are not pushed 
+		// to the timelines of their followers but merged in them when the timelines are read
+		public static final int FOLLOWERS_THRESHOLD = Integer.getInteger("twitterlite.fanout.followersThreshold", 1000);
+		// The messages posted by a sender during this time are pushed together to the followers
+		public static final long COALESCING_WINDOW_MILLIS = Long.getLong("twitterlite.fanout.coalescingWindowMillis", 5000);
+		// The messages of a window are read this time after its end, so that the last posts are committed and indexed
+		public static final long COALESCING_GRACE_MILLIS = Long.getLong("twitterlite.fanout.coalescingGraceMillis", 2000);
+		// A new follower is only added to the receivers of the most recent messages of the followed user,
+		// the older ones are read from the messages of the followed user when the timeline is read
+		public static final int BACKFILL_MAX_MESSAGES = Integer.getInteger("twitterlite.fanout.backfillMaxMessages", 200);
+		public static final long BACKFILL_MAX_AGE_MILLIS = Long.getLong("twitterlite.fanout.backfillMaxAgeMillis", 7 * 24 * 3600 * 1000L);
 	}
 }
@@ -30,6 +30,8 @@ public class TwitterLiteEndPointsModule extends GuiceSystemServiceServletModule
 	    
 	    this.serveGuiceSystemServiceServlet("/_ah/spi/*", serviceClasses);
 	    
+	    serve("/_ah/start").with(BackendStartServlet.class);
+	    
 	    // INTERCEPTORS
 	    
 	    // We can use interceptors for endpoints method arguments validation following jsr303
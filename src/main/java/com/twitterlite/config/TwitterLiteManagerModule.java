@@ -9,23 +9,24 @@ import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.common.base.Optional;
 import com.google.inject.AbstractModule;
 import com.google.inject.BindingAnnotation;
 import com.google.inject.Provides;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
 import com.google.inject.matcher.Matchers;
+import com.google.inject.servlet.RequestScoped;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
 import com.twitterlite.managers.MessageManager;
 import com.twitterlite.managers.MessageManager.ManagedMessage;
+import com.twitterlite.managers.SessionManager;
 import com.twitterlite.managers.UserManager;
 import com.twitterlite.managers.UserManager.ManagedUser;
 import com.twitterlite.managers.impl.MessageManagerImpl;
 import com.twitterlite.managers.impl.MessageManagerImpl.ManagedMessageImpl;
 import com.twitterlite.managers.impl.MessageManagerImpl.ManagedMessageImplFactory;
+import com.twitterlite.managers.impl.SessionManagerImpl;
 import com.twitterlite.managers.impl.UserManagerImpl;
 import com.twitterlite.managers.impl.UserManagerImpl.ManagedUserFactory;
 import com.twitterlite.managers.impl.UserManagerImpl.ManagedUserImpl;
@@ -33,9 +34,17 @@ import com.twitterlite.managers.interceptors.TransactInterceptor;
 import com.twitterlite.managers.interceptors.TransactInterceptor.Transact;
 import com.twitterlite.models.message.Message;
 import com.twitterlite.models.message.MessageReceiversIndex;
+import com.twitterlite.models.session.RevokedSession;
+import com.twitterlite.models.session.RevokedSessions;
+import com.twitterlite.models.session.SessionSecret;
 import com.twitterlite.models.user.User;
+import com.twitterlite.models.user.UserCounterShard;
+import com.twitterlite.models.user.UserFollowedFilter;
 import com.twitterlite.models.user.UserFollowedIndex;
 import com.twitterlite.models.user.UserFollowersIndex;
+import com.twitterlite.models.user.UserFollowersShard;
+import com.twitterlite.models.user.UserTimeLine;
+import com.twitterlite.models.user.UserUniqueValue;
 
 public class TwitterLiteManagerModule extends AbstractModule {
 
@@ -47,21 +56,12 @@ public class TwitterLiteManagerModule extends AbstractModule {
 	@Documented
 	public static @interface CurrentUser {}
 	
-	@Provides @CurrentUser public Optional<Key<User>> getCurrentUser(HttpServletRequest req) {
-		log.info("CURRENT USER PROVIDER : remote address" + req.getRemoteAddr());
-		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+	// resolved once per request
+	@Provides @RequestScoped @CurrentUser public Optional<Key<User>> getCurrentUser(HttpServletRequest req, SessionManager sessionManager) {
 		// This is not secure.... it is a temporary work around
-		String key_str = (String)mem.get(CONSTANTS.MEMCACHE.CURRENT_USER_KEY + req.getRemoteAddr());
-		Key<User> key;
-		if (key_str != null) {
-			log.info("USER IS PRESENT");
-			key = Key.create(key_str);
-		}
-		else {
-			log.info("USER IS ABSENT");
-			key = null;
-		}
-		return Optional.fromNullable(key);
+		Optional<Key<User>> key = sessionManager.getUser(req.getRemoteAddr(), req.getHeader(CONSTANTS.SESSION.TOKEN_HEADER));
+		log.fine("CURRENT USER PROVIDER : remote address " + req.getRemoteAddr() + (key.isPresent() ? " : USER IS PRESENT" : " : USER IS ABSENT"));
+		return key;
 	}
 	
 	@Override
@@ -69,9 +69,17 @@ public class TwitterLiteManagerModule extends AbstractModule {
 		
 		ObjectifyService.register(User.class);
 		ObjectifyService.register(UserFollowedIndex.class);
+		ObjectifyService.register(UserFollowedFilter.class);
 		ObjectifyService.register(UserFollowersIndex.class);
+		ObjectifyService.register(UserFollowersShard.class);
+		ObjectifyService.register(UserCounterShard.class);
+		ObjectifyService.register(UserTimeLine.class);
+		ObjectifyService.register(UserUniqueValue.class);
 		ObjectifyService.register(Message.class);
 		ObjectifyService.register(MessageReceiversIndex.class);
+		ObjectifyService.register(SessionSecret.class);
+		ObjectifyService.register(RevokedSession.class);
+		ObjectifyService.register(RevokedSessions.class);
 		
 		// INTERCEPTORS
 		// this transaction interceptor is presented in the Objectify documentation
@@ -81,6 +89,9 @@ public class TwitterLiteManagerModule extends AbstractModule {
 		bind(UserManager.class).to(UserManagerImpl.class);
 		install(new FactoryModuleBuilder().implement(ManagedUser.class, ManagedUserImpl.class).build(ManagedUserFactory.class));
 		
+		// SESSION CONFIG BINDINGS
+		bind(SessionManager.class).to(SessionManagerImpl.class);
+		
 		// MESSAGE CONFIG BINDINGS
 		bind(MessageManager.class).to(MessageManagerImpl.class);
 		install(new FactoryModuleBuilder().implement(ManagedMessage.class, ManagedMessageImpl.class).build(ManagedMessageImplFactory.class));
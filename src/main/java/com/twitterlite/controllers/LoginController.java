@@ -10,9 +10,6 @@ import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.api.server.spi.response.BadRequestException;
 import com.google.api.server.spi.response.NotFoundException;
-import com.google.appengine.api.memcache.Expiration;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -20,6 +17,7 @@ import com.google.inject.Singleton;
 import com.googlecode.objectify.Key;
 import com.twitterlite.config.CONSTANTS;
 import com.twitterlite.config.TwitterLiteManagerModule.CurrentUser;
+import com.twitterlite.managers.SessionManager;
 import com.twitterlite.managers.UserManager;
 import com.twitterlite.models.user.User;
 import com.twitterlite.models.user.User.UserGetDTO;
@@ -33,6 +31,7 @@ import static com.google.common.base.Preconditions.*;
 public class LoginController {
 
 	UserManager userManager;
+	SessionManager sessionManager;
 	@CurrentUser Provider<Optional<Key<User>>> currentUserProvider;
 	
 	private final Logger log = Logger.getLogger(this.getClass().getSimpleName());
@@ -40,8 +39,9 @@ public class LoginController {
 	// TODO: log everywhere
 	
 	@Inject
-	public LoginController(UserManager userManager, @CurrentUser Provider<Optional<Key<User>>> currentUserProvider) {
+	public LoginController(UserManager userManager, SessionManager sessionManager, @CurrentUser Provider<Optional<Key<User>>> currentUserProvider) {
 		this.userManager = userManager;
+		this.sessionManager = sessionManager;
 		this.currentUserProvider = currentUserProvider;
 	}
 	
@@ -69,11 +69,12 @@ public class LoginController {
 			User usr = userManager.get(dto.login, dto.email).read();
 			currentUserKey = usr.getKey();
 			
-			MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
-			mem.put(CONSTANTS.MEMCACHE.CURRENT_USER_KEY + req.getRemoteAddr(), currentUserKey.getString(), Expiration.byDeltaSeconds(CONSTANTS.MEMCACHE.SESSION_EXPIRATION_SEC));
+			String token = sessionManager.login(req.getRemoteAddr(), currentUserKey);
 			log.info("USER LOGGED IN : " + dto.login + " : email : " + dto.email);
 			log.info("SESSION ID : " + req.getRemoteAddr());
-			return UserGetDTO.get(usr);
+			UserGetDTO userDto = UserGetDTO.get(usr);
+			userDto.sessionToken = token;
+			return userDto;
 		} catch (IllegalArgumentException | NullPointerException e) {
 			throw new BadRequestException(e);
 		}
@@ -85,10 +86,8 @@ public class LoginController {
 			httpMethod = HttpMethod.POST
 	)
 	public void logout(HttpServletRequest req) throws BadRequestException {
-		if (currentUserProvider.get().isPresent()) {
-			MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
-			mem.delete(CONSTANTS.MEMCACHE.CURRENT_USER_KEY + req.getRemoteAddr());
-		}
+		if (currentUserProvider.get().isPresent())
+			sessionManager.logout(req.getRemoteAddr(), req.getHeader(CONSTANTS.SESSION.TOKEN_HEADER));
 		else 
 			throw new BadRequestException("You must be logged in to logout.");
 		
@@ -1,8 +1,9 @@
 package com.twitterlite.controllers;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 import javax.inject.Named;
@@ -12,11 +13,13 @@ import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.api.server.spi.response.BadRequestException;
 import com.google.api.server.spi.response.NotFoundException;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
 import com.twitterlite.config.TwitterLiteManagerModule.CurrentUser;
 import com.twitterlite.controllers.interceptors.InterceptWith;
 import com.twitterlite.controllers.interceptors.LoginInterceptor;
@@ -51,12 +54,28 @@ public class MessageController {
 	}
 	
 	private MessageGetDTO updateMessageDTOMetadata(MessageGetDTO dto) {
-		Key<User> currentUserKey = currentUserProvider.get().orNull();
-		if (currentUserKey != null && dto.messageKey != null)  
-			dto.isMessageFromCurrentUser = msgManager.isMessageSender(dto.messageKey, currentUserKey.getString());
+		updateMessageDTOsMetadata(Collections.singletonList(dto));
 		return dto;
 	}
 	
+	private List<MessageGetDTO> updateMessageDTOsMetadata(List<MessageGetDTO> dtos) {
+		Key<User> currentUserKey = currentUserProvider.get().orNull();
+		if (currentUserKey != null)
+			msgManager.updateMessagesMetadata(dtos, currentUserKey);
+		return dtos;
+	}
+	
+	private List<MessageGetDTO> getMessageDTOs(ListChunk<Message> msgs) {
+		final Result<Map<Key<User>, User>> senders = msgManager.getSendersAsync(msgs.getChunk());
+		List<MessageGetDTO> dtos = msgs.transform(new Function<Message, MessageGetDTO>() {
+			@Override
+			public MessageGetDTO apply(Message msg) {
+				return MessageGetDTO.get(msg, senders.now());
+			}
+		});
+		return updateMessageDTOsMetadata(dtos);
+	}
+	
 	@ApiMethod(
 			name = "post",
 			path = "message",
@@ -82,7 +101,11 @@ public class MessageController {
 			httpMethod = HttpMethod.GET
 		)
 	public MessageGetDTO getMessage(@Named("msgKey") String keyStr) throws NotFoundException {
-		return updateMessageDTOMetadata(MessageGetDTO.get(msgManager.get(keyStr).read()));
+		ManagedMessage mngMsg = msgManager.getAsync(Key.<Message>create(keyStr)).now();
+		if (mngMsg == null)
+			throw new NotFoundException("No such message: " + keyStr);
+		Message msg = mngMsg.read();
+		return updateMessageDTOMetadata(MessageGetDTO.get(msg, msgManager.getSendersAsync(Collections.singletonList(msg)).now()));
 	}
 	
 	@ApiMethod(
@@ -142,12 +165,8 @@ public class MessageController {
 
 		if (limit < 0 || limit > 25)
 			limit = 25;
-		ListChunk<Message> msgs = msgManager.getAllMessages(encodedCursor, limit.intValue());
-		List<MessageGetDTO> dtos = new LinkedList<MessageGetDTO>();
-		for (Message msg : msgs.chunk)
-			dtos.add(updateMessageDTOMetadata(MessageGetDTO.get(msg)));
-		
-		return new MessagesCollection(dtos, msgs.getEncodedCursor());
+		ListChunk<Message> msgs = msgManager.getAllMessagesAsync(encodedCursor, limit.intValue()).now();
+		return new MessagesCollection(getMessageDTOs(msgs), msgs.getEncodedCursor());
 	}
 	
 	@ApiMethod(
@@ -162,12 +181,8 @@ public class MessageController {
 
 		if (limit < 0 || limit > 25)
 			limit = 25;
-		ListChunk<Message> msgs = msgManager.getUserMessages(encodedCursor, limit.intValue(), userKey);
-		List<MessageGetDTO> dtos = new LinkedList<MessageGetDTO>();
-		for (Message msg : msgs.chunk)
-			dtos.add(updateMessageDTOMetadata(MessageGetDTO.get(msg)));
-		
-		return new MessagesCollection(dtos, msgs.getEncodedCursor());
+		ListChunk<Message> msgs = msgManager.getUserMessagesAsync(encodedCursor, limit.intValue(), Key.<User>create(userKey)).now();
+		return new MessagesCollection(getMessageDTOs(msgs), msgs.getEncodedCursor());
 	}
 	
 	@ApiMethod(
@@ -182,11 +197,7 @@ public class MessageController {
 
 		if (limit < 0 || limit > 25)
 			limit = 25;
-		ListChunk<Message> msgs = msgManager.getUserTimeLine(encodedCursor, limit.intValue(), userKey);
-		List<MessageGetDTO> dtos = new LinkedList<MessageGetDTO>();
-		for (Message msg : msgs.chunk)
-			dtos.add(updateMessageDTOMetadata(MessageGetDTO.get(msg)));
-		
-		return new MessagesCollection(dtos, msgs.getEncodedCursor());
+		ListChunk<Message> msgs = msgManager.getUserTimeLineAsync(encodedCursor, limit.intValue(), Key.<User>create(userKey)).now();
+		return new MessagesCollection(getMessageDTOs(msgs), msgs.getEncodedCursor());
 	}
 }
\ No newline at end of file
@@ -21,11 +21,21 @@ import com.googlecode.objectify.Ref;
 import com.twitterlite.config.TwitterLiteManagerModule.CurrentUser;
 import com.twitterlite.managers.MessageManager;
 import com.twitterlite.managers.UserManager;
+import com.twitterlite.managers.impl.EntityCache;
+import com.twitterlite.managers.impl.EntityCache.EntityCacheStats;
+import com.twitterlite.managers.impl.FollowGraph;
+import com.twitterlite.managers.impl.TimeLineCache;
+import com.twitterlite.managers.impl.TimeLineCache.TimeLineCacheStats;
 import com.twitterlite.models.message.Message;
 import com.twitterlite.models.message.MessageReceiversIndex;
 import com.twitterlite.models.user.User;
+import com.twitterlite.models.user.UserCounterShard;
+import com.twitterlite.models.user.UserFollowedFilter;
 import com.twitterlite.models.user.UserFollowedIndex;
 import com.twitterlite.models.user.UserFollowersIndex;
+import com.twitterlite.models.user.UserFollowersShard;
+import com.twitterlite.models.user.UserTimeLine;
+import com.twitterlite.models.user.UserUniqueValue;
 
 import static com.googlecode.objectify.ObjectifyService.*;
 
@@ -39,6 +49,8 @@ public class TestServerController {
 	UserManager userManager;
 	MessageManager msgManager;
 	Provider<Optional<Key<User>>> currentUserProvider;
+	EntityCache entityCache;
+	TimeLineCache timeLineCache;
 	
 //	private final Logger log = Logger.getLogger(this.getClass().getSimpleName());
 	
@@ -47,10 +59,14 @@ public class TestServerController {
 	@Inject
 	public TestServerController(UserManager userManager,
 								MessageManager msgManager,
-								@CurrentUser Provider<Optional<Key<User>>> currentUserProvider) {
+								@CurrentUser Provider<Optional<Key<User>>> currentUserProvider,
+								EntityCache entityCache,
+								TimeLineCache timeLineCache) {
 		this.userManager = userManager;
 		this.msgManager = msgManager;
 		this.currentUserProvider = currentUserProvider;
+		this.entityCache = entityCache;
+		this.timeLineCache = timeLineCache;
 	}
 	
 	public static class DeleteTestServerTask implements DeferredTask {
@@ -66,6 +82,7 @@ public class TestServerController {
 				Iterable<Key<UserFollowersIndex>> it3 = ofy().load().type(UserFollowersIndex.class).ancestor(key).keys().iterable();
 				ofy().delete().entities(it2);
 				ofy().delete().entities(it3);
+				ofy().delete().keys(UserTimeLine.key(key), UserFollowedFilter.key(key));
 			}
 			ofy().delete().entities(it);
 			Iterable<Key<Message>> it4 = ofy().load().type(Message.class).keys().iterable();
@@ -74,6 +91,11 @@ public class TestServerController {
 				ofy().delete().entities(it5);
 			}
 			ofy().delete().entities(it4);
+			ofy().delete().keys(ofy().load().type(UserUniqueValue.class).keys());
+			ofy().delete().keys(ofy().load().type(UserFollowersShard.class).keys());
+			ofy().delete().keys(ofy().load().type(UserCounterShard.class).keys());
+			// the task runs on the backend which holds the follow graph
+			FollowGraph.get().clear();
 		}
 	}
 	
@@ -123,4 +145,73 @@ public class TestServerController {
 				.withPayload(new DeleteTestServerTask())
 				.header("Host", BackendServiceFactory.getBackendService().getBackendAddress("message-backend")));
 	}
+	
+	@ApiMethod(
+			name = "migrate.follow.indexes",
+			path = "migrate/follow/indexes",
+			httpMethod = HttpMethod.POST
+	)
+	public void migrateFollowIndexes() {
+		userManager.migrateFollowIndexes();
+	}
+	
+	@ApiMethod(
+			name = "migrate.unique.values",
+			path = "migrate/unique/values",
+			httpMethod = HttpMethod.POST
+	)
+	public void migrateUniqueValues() {
+		userManager.migrateUniqueValues();
+	}
+	
+	@ApiMethod(
+			name = "migrate.receivers.senders",
+			path = "migrate/receivers/senders",
+			httpMethod = HttpMethod.POST
+	)
+	public void migrateReceiversIndexSenders() {
+		msgManager.migrateReceiversIndexSenders();
+	}
+	
+	@ApiMethod(
+			name = "rebuild.followed.filters",
+			path = "rebuild/followed/filters",
+			httpMethod = HttpMethod.POST
+	)
+	public void rebuildFollowedFilters() {
+		userManager.rebuildFollowedFilters();
+	}
+	
+	@ApiMethod(
+			name = "recount.users",
+			path = "recount/users",
+			httpMethod = HttpMethod.POST
+	)
+	public void recountUsers() {
+		userManager.recountUsers();
+	}
+	
+	/*
+	 * The stats of the entity cache of the instance serving the request
+	 */
+	@ApiMethod(
+			name = "cache.stats",
+			path = "cache/stats",
+			httpMethod = HttpMethod.GET
+	)
+	public EntityCacheStats getCacheStats() {
+		return entityCache.getStats();
+	}
+	
+	/*
+	 * The hit ratio of the first timeline pages read by the instance serving the request
+	 */
+	@ApiMethod(
+			name = "timeline.cache.stats",
+			path = "timeline/cache/stats",
+			httpMethod = HttpMethod.GET
+	)
+	public TimeLineCacheStats getTimeLineCacheStats() {
+		return timeLineCache.getStats();
+	}
 }
\ No newline at end of file
@@ -1,8 +1,10 @@
 package com.twitterlite.controllers;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
@@ -13,11 +15,14 @@ import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.api.server.spi.response.BadRequestException;
 import com.google.api.server.spi.response.NotFoundException;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
 import com.twitterlite.config.TwitterLiteManagerModule.CurrentUser;
 import com.twitterlite.controllers.interceptors.InterceptWith;
 import com.twitterlite.controllers.interceptors.LoginInterceptor;
@@ -25,10 +30,11 @@ import com.twitterlite.controllers.interceptors.LoginInterceptor.LoginNotNeeded;
 import com.twitterlite.managers.ListChunk;
 import com.twitterlite.managers.UserManager;
 import com.twitterlite.managers.UserManager.ManagedUser;
-import com.twitterlite.managers.impl.UserManagerImpl;
 import com.twitterlite.models.user.User;
 import com.twitterlite.models.user.User.UserGetDTO;
 import com.twitterlite.models.user.User.UserSetDTO;
+import com.twitterlite.models.user.UserCounterShard.Counter;
+import com.twitterlite.models.user.UserCounterShard.Counts;
 import com.twitterlite.util.BeanExtraUtils;
 
 import static com.google.common.base.Preconditions.*;
@@ -67,11 +73,48 @@ public class UserController {
 		}
 	}
 	
-	private UserGetDTO updateUserDTOMetadata(UserGetDTO dto) {
+	private static final Function<User, UserGetDTO> TO_DTO = new Function<User, UserGetDTO>() {
+		@Override
+		public UserGetDTO apply(User user) {
+			return UserGetDTO.get(user);
+		}
+	};
+	
+	/*
+	 * The reads of the users followed by the current user, started before the page is read
+	 */
+	private @CheckForNull Result<Predicate<Key<User>>> getCurrentUserFollowing() {
 		Key<User> currentUserKey = currentUserProvider.get().orNull();
-		if (currentUserKey != null && dto.userKey != null)  
-			dto.isFollowedByCurrentUser = userManager.isUserFollowing(dto.userKey, currentUserKey.getString());
-		return dto;
+		return currentUserKey != null ? userManager.getFollowingAsync(currentUserKey) : null;
+	}
+	
+	/*
+	 * The counts are read while the followed users are checked
+	 */
+	private List<UserGetDTO> updateUserDTOsMetadata(List<UserGetDTO> dtos, @CheckForNull Result<Predicate<Key<User>>> following) {
+		List<Key<User>> keys = new ArrayList<>(dtos.size());
+		for (UserGetDTO dto : dtos)
+			if (dto.userKey != null)
+				keys.add(Key.<User>create(dto.userKey));
+		Result<Map<Key<User>, Counts>> counts = userManager.getCounts(keys);
+		if (following != null)
+			for (UserGetDTO dto : dtos)
+				dto.isFollowedByCurrentUser = Boolean.valueOf(dto.userKey != null && following.now().apply(Key.<User>create(dto.userKey)));
+		for (UserGetDTO dto : dtos)
+			if (dto.userKey != null)
+				setCounts(dto, counts.now().get(Key.<User>create(dto.userKey)));
+		return dtos;
+	}
+	
+	/*
+	 * The approximate counts do not go below zero
+	 */
+	private static void setCounts(UserGetDTO dto, @CheckForNull Counts counts) {
+		if (counts == null)
+			return;
+		dto.followersCount = Long.valueOf(Math.max(0, counts.get(Counter.FOLLOWERS)));
+		dto.followedCount = Long.valueOf(Math.max(0, counts.get(Counter.FOLLOWED)));
+		dto.messagesCount = Long.valueOf(Math.max(0, counts.get(Counter.MESSAGES)));
 	}
 	
 	@ApiMethod(
@@ -98,8 +141,19 @@ public class UserController {
 			httpMethod = HttpMethod.GET
 		)
 	public UserGetDTO getUser(@Named("userKey") String keyStr) throws NotFoundException {
-		UserGetDTO dto = UserGetDTO.get(userManager.get(keyStr).read());
-		return updateUserDTOMetadata(dto); 
+		Key<User> key = Key.create(keyStr);
+		Key<User> currentUserKey = currentUserProvider.get().orNull();
+		// the user, his counts and whether the current user follows him are read together
+		Result<ManagedUser> user = userManager.getAsync(key);
+		Result<Map<Key<User>, Counts>> counts = userManager.getCounts(Collections.singletonList(key));
+		Result<Boolean> followed = currentUserKey != null ? userManager.isUserFollowingAsync(key, currentUserKey) : null;
+		if (user.now() == null)
+			throw new NotFoundException("No such user: " + keyStr);
+		UserGetDTO dto = UserGetDTO.get(user.now().read());
+		if (followed != null)
+			dto.isFollowedByCurrentUser = followed.now();
+		setCounts(dto, counts.now().get(key));
+		return dto;
 	}
 	
 	@ApiMethod(
@@ -111,12 +165,11 @@ public class UserController {
 	public void updateUser(@Named("userKey") String keyStr, UserSetDTO dto) throws NotFoundException, BadRequestException {
 		ManagedUser mUser = userManager.get(keyStr);
 		try {
-			UserManagerImpl.checkThatLoginAndEmailNotUsed(dto.getLogin(), dto.getEmail(), keyStr);
 			BeanExtraUtils.copyOnlyNonNullProperties(mUser.read(), dto);
-		} catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
+			mUser.update();
+		} catch (IllegalArgumentException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
 			throw new BadRequestException(e.getMessage());
 		}
-		mUser.update();
 	}
 	
 	@ApiMethod(
@@ -182,10 +235,10 @@ public class UserController {
 
 		if (limit < 0 || limit > 25)
 			limit = 25;
-		ListChunk<User> users = userManager.getAllUsers(encodedCursor, limit.intValue());
-		List<UserGetDTO> dtos = new LinkedList<UserGetDTO>();
-		for (User user : users.chunk)
-			dtos.add(updateUserDTOMetadata(UserGetDTO.get(user)));
+		Result<Predicate<Key<User>>> following = getCurrentUserFollowing();
+		ListChunk<User> users = userManager.getAllUsersAsync(encodedCursor, limit.intValue()).now();
+		List<UserGetDTO> dtos = users.transform(TO_DTO);
+		updateUserDTOsMetadata(dtos, following);
 		
 		return new UsersCollection(dtos, users.getEncodedCursor());
 	}
@@ -200,10 +253,10 @@ public class UserController {
 												@Nullable @Named("cursor") String encodedCursor) {
 		if (limit < 0 || limit > 25)
 			limit = 25;
-		ListChunk<User> users = userManager.getUserFollowers(encodedCursor, limit.intValue(), userKey);
-		List<UserGetDTO> dtos = new LinkedList<UserGetDTO>();
-		for (User user : users.chunk)
-			dtos.add(updateUserDTOMetadata(UserGetDTO.get(user)));
+		Result<Predicate<Key<User>>> following = getCurrentUserFollowing();
+		ListChunk<User> users = userManager.getUserFollowersAsync(encodedCursor, limit.intValue(), Key.<User>create(userKey)).now();
+		List<UserGetDTO> dtos = users.transform(TO_DTO);
+		updateUserDTOsMetadata(dtos, following);
 
 		return new UsersCollection(dtos, users.getEncodedCursor());
 	}
@@ -219,11 +272,11 @@ public class UserController {
 
 		if (limit < 0 || limit > 25)
 			limit = 25;
-		ListChunk<User> users = userManager.getUserFollowed(encodedCursor, limit.intValue(), userKey);
-		List<UserGetDTO> dtos = new LinkedList<UserGetDTO>();
-		for (User user : users.chunk)
-			// for the moment leave it like this, however this should all have the metadata set to true
-			dtos.add(updateUserDTOMetadata(UserGetDTO.get(user)));
+		Result<Predicate<Key<User>>> following = getCurrentUserFollowing();
+		ListChunk<User> users = userManager.getUserFollowedAsync(encodedCursor, limit.intValue(), Key.<User>create(userKey)).now();
+		// for the moment leave it like this, however this should all have the metadata set to true
+		List<UserGetDTO> dtos = users.transform(TO_DTO);
+		updateUserDTOsMetadata(dtos, following);
 		
 		return new UsersCollection(dtos, users.getEncodedCursor());
 	}
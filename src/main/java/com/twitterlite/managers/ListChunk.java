@@ -1,45 +1,132 @@
 package com.twitterlite.managers;
 
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.CheckForNull;
+
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.QueryResultIterable;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * A page of results and the cursor of the next page.
+ *
+ * The chunks read from a query are only read when the results or the cursor are needed,
+ * so that transform can build the results of the controllers while the query batches come.
+ */
 public class ListChunk<T> implements Serializable {
 	private static final long serialVersionUID = 1L;
-	
-	public List<T> chunk;
-	private Cursor cursor;
-	
+
+	// number of results expected when not given
+	private static final int DEFAULT_SIZE = 20;
+
+	@CheckForNull private List<T> chunk;
+	@CheckForNull private Cursor cursor;
+	@CheckForNull private String encodedCursor;
+
+	@CheckForNull private transient QueryResultIterator<T> iterator;
+	private int expectedSize;
+
 	public static <T> List<T> copyQueryResultIterator(QueryResultIterator<T> it) {
-		LinkedList<T> list = new LinkedList<>();
+		List<T> list = new ArrayList<>();
 		while (it.hasNext())
 			list.add(it.next());
 		return list;
 	}
-	
+
 	public ListChunk(QueryResultIterable<T> chunk) {
+		this(chunk, DEFAULT_SIZE);
+	}
+
+	/*
+	 * The query should be run with chunk(limit) so that the page is read in one batch
+	 */
+	public ListChunk(QueryResultIterable<T> chunk, int limit) {
 		super();
-		QueryResultIterator<T> iterator = chunk.iterator();
-		this.chunk = copyQueryResultIterator(iterator);
-		this.cursor = iterator.getCursor();
+		this.iterator = chunk.iterator();
+		this.expectedSize = limit;
 	}
-	
+
 	public ListChunk(Iterable<T> chunk, Cursor cursor) {
 		super();
-		this.chunk = Lists.newArrayList(chunk);
+		this.chunk = toList(chunk);
 		this.cursor = cursor;
+		this.encodedCursor = cursor.toWebSafeString();
+	}
+
+	/*
+	 * For the chunks which are not read from a single datastore query
+	 */
+	public ListChunk(Iterable<T> chunk, String encodedCursor) {
+		super();
+		this.chunk = toList(chunk);
+		this.cursor = null;
+		this.encodedCursor = encodedCursor;
 	}
-	
-	public Cursor getCursor() {
+
+	// the lists built by the managers are not copied
+	private static <T> List<T> toList(Iterable<T> chunk) {
+		return chunk instanceof List ? (List<T>)chunk : Lists.newArrayList(chunk);
+	}
+
+	/*
+	 * Maps the results in one pass, reading the query if it was not read yet
+	 */
+	public <R> List<R> transform(Function<? super T, ? extends R> function) {
+		List<R> transformed;
+		if (chunk != null) {
+			transformed = new ArrayList<>(chunk.size());
+			for (T t : chunk)
+				transformed.add(function.apply(t));
+			return transformed;
+		}
+		QueryResultIterator<T> it = checkNotNull(iterator);
+		List<T> read = new ArrayList<>(expectedSize);
+		transformed = new ArrayList<>(expectedSize);
+		while (it.hasNext()) {
+			T t = it.next();
+			read.add(t);
+			transformed.add(function.apply(t));
+		}
+		setRead(read, it);
+		return transformed;
+	}
+
+	private void read() {
+		if (chunk != null)
+			return;
+		QueryResultIterator<T> it = checkNotNull(iterator);
+		List<T> read = new ArrayList<>(expectedSize);
+		while (it.hasNext())
+			read.add(it.next());
+		setRead(read, it);
+	}
+
+	private void setRead(List<T> read, QueryResultIterator<T> it) {
+		this.chunk = read;
+		this.cursor = it.getCursor();
+		this.encodedCursor = this.cursor.toWebSafeString();
+		this.iterator = null;
+	}
+
+	public List<T> getChunk() {
+		read();
+		return checkNotNull(this.chunk);
+	}
+
+	public @CheckForNull Cursor getCursor() {
+		read();
 		return this.cursor;
 	}
-	
+
 	public String getEncodedCursor() {
-		return this.cursor.toWebSafeString();
+		read();
+		return checkNotNull(this.encodedCursor);
 	}
 }
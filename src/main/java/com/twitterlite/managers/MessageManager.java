@@ -1,9 +1,14 @@
 package com.twitterlite.managers;
 
+import java.util.Collection;
+import java.util.Map;
+
 import com.google.api.server.spi.response.NotFoundException;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
 import com.googlecode.objectify.Ref;
 import com.twitterlite.models.message.Message;
+import com.twitterlite.models.message.Message.MessageGetDTO;
 import com.twitterlite.models.user.User;
 
 public interface MessageManager {
@@ -11,6 +16,10 @@ public interface MessageManager {
 	public static interface ManagedMessage {
 		public Message read();
 		public void update();
+		/*
+		 * The message is saved in the background, the entity cache is invalidated when the result is asked for
+		 */
+		public Result<Void> updateAsync();
 		public void delete();
 	}
 	public ManagedMessage create(String text, Ref<User> sender) throws IllegalArgumentException;
@@ -19,35 +28,67 @@ public interface MessageManager {
 	public ManagedMessage get(String keyStr) throws NotFoundException;
 	public ManagedMessage get(Key<Message> key) throws NotFoundException;
 	
-	public Boolean isMessageSender(Key<Message> msgKey, Key<User> senderKey);
-	public Boolean isMessageSender(String msgKeyStr, String senderKeyStr);
+	/*
+	 * The reads are started and waited for when the result is asked for,
+	 * the result is null if there is no such message
+	 */
+	public Result<ManagedMessage> getAsync(Key<Message> key);
+	/*
+	 * The missing messages are not in the result
+	 */
+	public Result<Map<Key<Message>, ManagedMessage>> getAll(Collection<Key<Message>> keys);
+	
+	/*
+	 * Sets the metadata of a page of messages for the current user without any datastore access
+	 */
+	public void updateMessagesMetadata(Iterable<MessageGetDTO> dtos, Key<User> currentUser);
+	
+	/*
+	 * The messages of the lists are loaded without their sender:
+	 * get the distinct senders of a list of messages with a single batch load
+	 */
+	public Map<Key<User>, User> getSenders(Iterable<Message> messages);
+	public Result<Map<Key<User>, User>> getSendersAsync(Iterable<Message> messages);
 	
 	/*
 	 * Get all the messages in the datastore
 	 */
 	public ListChunk<Message> getAllMessages(String cursorStr, int limit);
+	public Result<ListChunk<Message>> getAllMessagesAsync(String cursorStr, int limit);
 
 	/*
 	 * Get all the messages written by a user
 	 */
 	public ListChunk<Message> getUserMessages(String cursorStr, int limit, Key<User> userKey);
 	public ListChunk<Message> getUserMessages(String cursorStr, int limit, String keyStr);
+	public Result<ListChunk<Message>> getUserMessagesAsync(String cursorStr, int limit, Key<User> userKey);
 	
 	/*
-	 * Get all the messages written by users this user follows
+	 * Get all the messages written by users this user follows, most recent first.
+	 * The cursor of the pages is a TimeCursor
 	 */
 	public ListChunk<Message> getUserTimeLine(String cursorStr, int limit, Key<User> userKey);
 	public ListChunk<Message> getUserTimeLine(String cursorStr, int limit, String keyStr);
+	public Result<ListChunk<Message>> getUserTimeLineAsync(String cursorStr, int limit, Key<User> userKey);
 	
 	/*
 	 * In a task add/remove the receiver key to/from each message of the sender.
-	 * We will start from the most recent messages of the sender
+	 * We will start from the most recent messages of the sender.
+	 * The receiver is only added to the recent messages (see CONSTANTS.FAN_OUT), 
+	 * the older ones are read from the sender messages when the timeline is read.
 	 */
 	public void addUserMessagesReceiver(Key<User> senderKey, Key<User> receiver);
 	public void removeUserMessagesReceiver(Key<User> senderKey, Key<User> receiver);
 	
 	/*
-	 * In a task add the receivers to the message index based on the user followers
+	 * In a task add the receivers to the message index and to their timeline based on the user followers.
+	 * The messages posted by the user in a short window are pushed together.
+	 */
+	public void addNewMessageReceivers(Key<Message> msgKey, long creation, Key<User> followed);
+	
+	/*
+	 * In a task set the sender of the receivers index shards written before they had one,
+	 * which are not found when a follower is removed
 	 */
-	public void addNewMessageReceivers(Key<Message> msgKey, Key<User> followed);
+	public void migrateReceiversIndexSenders();
 }
@@ -0,0 +1,25 @@
+package com.twitterlite.managers;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.base.Optional;
+import com.googlecode.objectify.Key;
+import com.twitterlite.models.user.User;
+
+public interface SessionManager {
+	
+	/*
+	 * The user logged in the session, if any.
+	 * A session token is checked in the instance, its revocation is read by key
+	 * and cached in the instance for a short time.
+	 * Without token, the session of the remote address is read from memcache
+	 * with a short lived copy in the instance.
+	 */
+	public Optional<Key<User>> getUser(String sessionId, @CheckForNull String token);
+	
+	/*
+	 * Returns the signed session token of the user
+	 */
+	public String login(String sessionId, Key<User> user);
+	public void logout(String sessionId, @CheckForNull String token);
+}
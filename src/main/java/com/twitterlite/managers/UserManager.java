@@ -1,24 +1,61 @@
 package com.twitterlite.managers;
 
+import java.util.Collection;
+import java.util.Map;
+
 import com.google.api.server.spi.response.NotFoundException;
+import com.google.common.base.Predicate;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
 import com.twitterlite.models.user.User;
+import com.twitterlite.models.user.User.UserGetDTO;
+import com.twitterlite.models.user.UserCounterShard.Counts;
 
 public interface UserManager {
 	
 	public static interface ManagedUser {
 		public User read();
-		public void update();
+		public void update() throws IllegalArgumentException;
+		/*
+		 * The user is saved in the background, unless his login or email changed which have to be reserved first.
+		 * The entity cache is invalidated when the result is asked for.
+		 */
+		public Result<Void> updateAsync() throws IllegalArgumentException;
 		public void delete();
 	}
 	public ManagedUser create(String login, String email) throws IllegalArgumentException;
 	
+	/*
+	 * The user having this login, if the email matches
+	 */
 	public ManagedUser get(String login, String email) throws NotFoundException;
 	public ManagedUser get(String keyStr) throws NotFoundException;
 	public ManagedUser get(Key<User> key) throws NotFoundException;
 	
+	/*
+	 * The reads are started and waited for when the result is asked for,
+	 * the result is null if there is no such user
+	 */
+	public Result<ManagedUser> getAsync(Key<User> key);
+	/*
+	 * The missing users are not in the result
+	 */
+	public Result<Map<Key<User>, ManagedUser>> getAll(Collection<Key<User>> keys);
+	
 	public Boolean isUserFollowing(Key<User> followedKey, Key<User> followerKey);
 	public Boolean isUserFollowing(String followedKeyStr, String followerKeyStr);
+	public Result<Boolean> isUserFollowingAsync(Key<User> followedKey, Key<User> followerKey);
+	/*
+	 * Whether the follower follows a user. The reads are started at once,
+	 * they run while the users to check are read
+	 */
+	public Result<Predicate<Key<User>>> getFollowingAsync(Key<User> followerKey);
+	
+	/*
+	 * Sets the metadata of a page of users for the current user,
+	 * reading the users followed by the current user once
+	 */
+	public void updateUsersMetadata(Iterable<UserGetDTO> dtos, Key<User> currentUser);
 	
 	/*
 	 * follow user management
@@ -29,20 +66,54 @@ public interface UserManager {
 	public void followUser(String followerKey, String followedKey);
 	public void unFollowUser(String followerKey, String followedKey);
 	
+	/*
+	 * In a task move the follow indexes created before they had a well-known key,
+	 * convert the follow lists of the previous version, and move the followers written in the
+	 * followers indexes before they were sharded to the shards, where the queries find them
+	 */
+	public void migrateFollowIndexes();
+	
+	/*
+	 * In a task reserve the login and email of the users created before the reservations
+	 */
+	public void migrateUniqueValues();
+	
+	/*
+	 * In a task rebuild the filters of the followed users, which are only rebuilt when they are updated
+	 */
+	public void rebuildFollowedFilters();
+	
+	/*
+	 * In a task count the followers, followed users and messages of all the users again,
+	 * the counters are only updated by the follows, unfollows, posts and deletes made since they exist
+	 */
+	public void recountUsers();
+	
+	/*
+	 * The follower, followed and message counts of the users, which are approximate.
+	 * The reads are started and waited for when the result is asked for
+	 */
+	public Result<Map<Key<User>, Counts>> getCounts(Collection<Key<User>> users);
+	
 	/*
 	 * Get all the users in the datastore
 	 */
 	public ListChunk<User> getAllUsers(String cursorStr, int limit);
+	public Result<ListChunk<User>> getAllUsersAsync(String cursorStr, int limit);
 	
 	/*
-	 * Get all the followers of this user
+	 * Get all the followers of this user, by increasing id in each shard of the followers.
+	 * The cursor of the pages is the shard and the id of the last user
 	 */
 	public ListChunk<User> getUserFollowers(String cursorStr, int limit, Key<User> key);
 	public ListChunk<User> getUserFollowers(String cursorStr, int limit, String userKey);
+	public Result<ListChunk<User>> getUserFollowersAsync(String cursorStr, int limit, Key<User> key);
 	
 	/*
-	 * Get all the users this user follows
+	 * Get all the users this user follows, by increasing id.
+	 * The cursor of the pages is the id of the last user
 	 */
 	public ListChunk<User> getUserFollowed(String cursorStr, int limit, Key<User> key);
 	public ListChunk<User> getUserFollowed(String cursorStr, int limit, String userKey);
+	public Result<ListChunk<User>> getUserFollowedAsync(String cursorStr, int limit, Key<User> key);
 }
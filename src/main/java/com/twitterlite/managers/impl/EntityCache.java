@@ -0,0 +1,194 @@
+package com.twitterlite.managers.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.Futures;
+import com.google.inject.Singleton;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.util.ResultCache;
+import com.googlecode.objectify.util.ResultNow;
+import com.twitterlite.config.CONSTANTS;
+
+import static com.google.common.base.Preconditions.*;
+
+import static com.googlecode.objectify.ObjectifyService.*;
+
+/*
+ * An in-process cache in front of the Objectify memcache cache, for the hot users and messages.
+ *
+ * It keeps the datastore entities rather than the objects: each get returns a new object
+ * which can be modified by the caller.
+ *
+ * The entities are invalidated across the instances with a version stamp in memcache, incremented by
+ * each update or delete. The stamp is read before loading the entity and checked again every
+ * REVALIDATE_MILLIS, so an instance may serve an updated entity for at most that time.
+ * The entities which are not cached are read with the stamps rather than after them: they are
+ * served as the others until REVALIDATE_MILLIS, then read again after their stamp as they cannot be checked.
+ */
+@Singleton
+public class EntityCache {
+
+	private static class CachedEntity {
+		private final Entity entity;
+		@CheckForNull
+		private final Object version;
+		private volatile long checked;
+
+		CachedEntity(Entity entity, @CheckForNull Object version, long checked) {
+			this.entity = entity;
+			this.version = version;
+			this.checked = checked;
+		}
+	}
+
+	private final Cache<Key<?>, CachedEntity> entities = CacheBuilder.newBuilder()
+																	.maximumSize(CONSTANTS.ENTITY_CACHE.SIZE)
+																	.expireAfterWrite(CONSTANTS.ENTITY_CACHE.TTL_MILLIS, TimeUnit.MILLISECONDS)
+																	.recordStats()
+																	.build();
+
+	// entities dropped because they were updated on another instance
+	private final AtomicLong staleCount = new AtomicLong();
+
+	// the version of the entities read with their stamp, which never matches a stamp
+	private static final Object UNVERIFIED = new Object();
+
+	static String versionKey(Key<?> key) {
+		return CONSTANTS.MEMCACHE.ENTITY_VERSION_KEY + key.getString();
+	}
+
+	public @CheckForNull <T> T get(Key<T> key) {
+		return get(Collections.singletonList(key)).get(key);
+	}
+
+	/*
+	 * The missing entities are not in the result
+	 */
+	public <T> Map<Key<T>, T> get(Iterable<Key<T>> keys) {
+		return getAsync(keys).now();
+	}
+
+	/*
+	 * The version stamps are read from memcache in the background with the entities which are not cached.
+	 * The cached entities found stale are loaded when the result is asked for, after their stamps.
+	 */
+	public <T> Result<Map<Key<T>, T>> getAsync(Iterable<Key<T>> keys) {
+		final long now = System.currentTimeMillis();
+		final Map<Key<T>, CachedEntity> found = new LinkedHashMap<>();
+		final List<Key<T>> missing = new ArrayList<>();
+		List<String> stamps = new ArrayList<>();
+		for (Key<T> key : keys) {
+			if (found.containsKey(key) || missing.contains(key))
+				continue;
+			CachedEntity cached = entities.getIfPresent(key);
+			if (cached == null) {
+				missing.add(key);
+				stamps.add(versionKey(key));
+				continue;
+			}
+			found.put(key, cached);
+			if (now - cached.checked > CONSTANTS.ENTITY_CACHE.REVALIDATE_MILLIS)
+				stamps.add(versionKey(key));
+		}
+		if (stamps.size() == 0)
+			return new ResultNow<>(toPojos(found));
+
+		final Future<Map<String, Object>> versions = MemcacheServiceFactory.getAsyncMemcacheService().getAll(stamps);
+		final Map<Key<T>, T> prefetched = missing.size() > 0 ? ofy().load().keys(missing) : Collections.<Key<T>, T>emptyMap();
+		return new ResultCache<Map<Key<T>, T>>() {
+			@Override
+			protected Map<Key<T>, T> nowUncached() {
+				Map<String, Object> read = Futures.getUnchecked(versions);
+				List<Key<T>> stale = new ArrayList<>();
+				for (Key<T> key : new ArrayList<>(found.keySet())) {
+					CachedEntity cached = found.get(key);
+					if (now - cached.checked <= CONSTANTS.ENTITY_CACHE.REVALIDATE_MILLIS)
+						continue;
+					if (Objects.equal(cached.version, read.get(versionKey(key)))) {
+						cached.checked = now;
+					} else {
+						entities.invalidate(key);
+						if (cached.version != UNVERIFIED)
+							staleCount.incrementAndGet();
+						found.remove(key);
+						stale.add(key);
+					}
+				}
+
+				Map<Key<T>, T> result = toPojos(found);
+				// an update made while they were read may not have changed the stamp yet, 
+				// they are read again at their first revalidation
+				for (Map.Entry<Key<T>, T> entry : prefetched.entrySet()) {
+					entities.put(entry.getKey(), new CachedEntity(ofy().toEntity(entry.getValue()), UNVERIFIED, now));
+					result.put(entry.getKey(), entry.getValue());
+				}
+				if (stale.size() > 0) {
+					// the stamps were read before the entities: an update made in between changes the stamp
+					Map<Key<T>, T> loaded = ofy().load().keys(stale);
+					for (Map.Entry<Key<T>, T> entry : loaded.entrySet()) {
+						entities.put(entry.getKey(), new CachedEntity(ofy().toEntity(entry.getValue()), read.get(versionKey(entry.getKey())), now));
+						result.put(entry.getKey(), entry.getValue());
+					}
+				}
+				return result;
+			}
+		};
+	}
+
+	private static <T> Map<Key<T>, T> toPojos(Map<Key<T>, CachedEntity> found) {
+		Map<Key<T>, T> result = new LinkedHashMap<>();
+		for (Map.Entry<Key<T>, CachedEntity> entry : found.entrySet())
+			result.put(entry.getKey(), ofy().<T>toPojo(entry.getValue().entity));
+		return result;
+	}
+
+	/*
+	 * To be called once the update or delete is committed
+	 */
+	public void invalidate(Key<?> key) {
+		checkNotNull(key);
+		entities.invalidate(key);
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		mem.increment(versionKey(key), 1L, Long.valueOf(0L));
+	}
+
+	public static class EntityCacheStats {
+		public long hits;
+		public long misses;
+		public long evictions;
+		public long stale;
+		public long size;
+		public double hitRate;
+
+		public EntityCacheStats() {}
+	}
+
+	public EntityCacheStats getStats() {
+		CacheStats stats = entities.stats();
+		EntityCacheStats dto = new EntityCacheStats();
+		dto.hits = stats.hitCount();
+		dto.misses = stats.missCount();
+		dto.evictions = stats.evictionCount();
+		dto.stale = staleCount.get();
+		dto.size = entities.size();
+		dto.hitRate = stats.hitRate();
+		return dto;
+	}
+}
@@ -0,0 +1,73 @@
+package com.twitterlite.managers.impl;
+
+import java.io.Serializable;
+
+import com.google.apphosting.api.ApiProxy;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * Sizes the batches of the receivers tasks from the observed datastore latency:
+ * a batch should take about TARGET_BATCH_MILLIS and the last one must end 
+ * early enough before the task deadline to enqueue the next task.
+ * 
+ * It is serialized with the tasks so that the next task starts with what was learned.
+ */
+public class FanOutBatchSizer implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	public static final long TARGET_BATCH_MILLIS = 5000;
+	public static final long DEADLINE_MARGIN_MILLIS = 15000;
+	
+	// weight of the last observation in the average latency
+	private static final double SMOOTHING = 0.3;
+	
+	private final int min;
+	private final int max;
+	private int size;
+	
+	// average time spent per item, negative until the first batch
+	private double millisPerItem = -1;
+	
+	public FanOutBatchSizer(int min, int max) {
+		checkArgument(min > 0 && min <= max);
+		this.min = min;
+		this.max = max;
+		this.size = min;
+	}
+	
+	public static long getRemainingMillis() {
+		return ApiProxy.getCurrentEnvironment().getRemainingMillis();
+	}
+	
+	/*
+	 * The size of the next batch or 0 if there is no time left for a batch
+	 */
+	public int next(long remainingMillis) {
+		long available = remainingMillis - DEADLINE_MARGIN_MILLIS;
+		if (available <= 0)
+			return 0;
+		if (millisPerItem <= 0)
+			return size;
+		long affordable = (long) (available / millisPerItem);
+		if (affordable < min)
+			return 0;
+		return (int) Math.min(size, affordable);
+	}
+	
+	public void record(int items, long millis) {
+		if (items <= 0)
+			return;
+		double observed = Math.max(millis, 1) / (double) items;
+		if (millisPerItem <= 0)
+			millisPerItem = observed;
+		else
+			millisPerItem = SMOOTHING * observed + (1 - SMOOTHING) * millisPerItem;
+		long target = (long) (TARGET_BATCH_MILLIS / millisPerItem);
+		this.size = (int) Math.max(min, Math.min(max, target));
+	}
+	
+	public int getSize() {
+		return size;
+	}
+}
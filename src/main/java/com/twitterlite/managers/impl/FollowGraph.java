@@ -0,0 +1,167 @@
+package com.twitterlite.managers.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.googlecode.objectify.Key;
+import com.twitterlite.managers.ListChunk;
+import com.twitterlite.models.user.User;
+import com.twitterlite.models.user.UserFollowersIndex;
+import com.twitterlite.util.LongKeyMap;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/*
+ * The followers of the users, held in the memory of the message-backend for the fan-out tasks.
+ *
+ * The followers of a user are a sorted array of ids, read from his UserFollowersIndex and its shards.
+ * The backend loads the followers of all the users when it starts, and the followers of a user
+ * are read again by a task enqueued on the backend once a follow or unfollow is committed.
+ * A user missing from the graph, because the backend is still loading or restarted, is read on demand,
+ * so the graph does not need to be complete.
+ * The backend has a single instance: the tasks updating the graph reach the instance which holds it.
+ *
+ * The update task runs apart from the fan-out, so a message posted right after a follow can be fanned out
+ * with the previous followers. The ProcessReceiversTask of the follow, which also runs on the backend,
+ * reads the followers again before its first query: a fan-out which missed the follower has read the graph
+ * before that, so its message was committed before the query and is backfilled. The same goes for an unfollow.
+ * The update task is only enqueued when no ProcessReceiversTask is.
+ *
+ * The ids of the users key a primitive map, read under a shared lock.
+ */
+public class FollowGraph {
+
+	private static final Logger log = Logger.getLogger(FollowGraph.class.getName());
+
+	// number of indexes read per datastore batch when the snapshot is loaded
+	private static final int SNAPSHOT_CHUNK = 500;
+
+	private static final FollowGraph INSTANCE = new FollowGraph();
+
+	private final LongKeyMap<long[]> followers = new LongKeyMap<>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile boolean loaded = false;
+
+	private FollowGraph() {}
+
+	public static FollowGraph get() {
+		return INSTANCE;
+	}
+
+	/*
+	 * The sorted ids of the followers, not to be modified
+	 */
+	public long[] getFollowers(Key<User> user) {
+		long[] ids;
+		lock.readLock().lock();
+		try {
+			ids = followers.get(user.getId());
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (ids == null)
+			ids = refresh(user);
+		return ids;
+	}
+
+	/*
+	 * Reads the followers of the user again, the last committed index wins
+	 * whatever the order in which the updates are run
+	 */
+	public long[] refresh(Key<User> user) {
+		// the tasks are run out of any transaction
+		long[] ids = UserManagerImpl.getFollowerIds(user);
+		lock.writeLock().lock();
+		try {
+			followers.put(user.getId(), ids);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return ids;
+	}
+
+	/*
+	 * Reads the indexes of all the users. The users updated while the snapshot is read
+	 * may be loaded with their previous followers, they are refreshed by their update task.
+	 */
+	public void loadSnapshot() {
+		long start = System.currentTimeMillis();
+		int count = 0;
+		Cursor cursor = null;
+		while (true) {
+			QueryResultIterator<UserFollowersIndex> it = ofy().transactionless().load()
+															.type(UserFollowersIndex.class)
+															.limit(SNAPSHOT_CHUNK)
+															.chunk(SNAPSHOT_CHUNK)
+															.startAt(cursor)
+															.iterator();
+			List<UserFollowersIndex> indexes = ListChunk.copyQueryResultIterator(it);
+			// the shards of the page are read in one batch
+			Map<Key<User>, long[]> page = UserManagerImpl.getFollowerIds(indexes);
+			lock.writeLock().lock();
+			try {
+				for (Map.Entry<Key<User>, long[]> entry : page.entrySet())
+					// a user updated since the snapshot started keeps the followers read by his update task
+					if (!followers.containsKey(entry.getKey().getId()))
+						followers.put(entry.getKey().getId(), entry.getValue());
+			} finally {
+				lock.writeLock().unlock();
+			}
+			count += indexes.size();
+			if (indexes.size() < SNAPSHOT_CHUNK)
+				break;
+			cursor = it.getCursor();
+		}
+		loaded = true;
+		log.info("Follow graph loaded: " + count + " users in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/*
+	 * The users are read again on demand
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			followers.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	public int getUserCount() {
+		lock.readLock().lock();
+		try {
+			return followers.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Enqueued once a follow or unfollow is committed, when no ProcessReceiversTask refreshes the followed user
+	 */
+	public static class UpdateFollowGraphTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+
+		private Key<User> followed;
+
+		public UpdateFollowGraphTask(Key<User> followed) {
+			this.followed = followed;
+		}
+
+		@Override
+		public void run() {
+			FollowGraph.get().refresh(followed);
+		}
+	}
+}
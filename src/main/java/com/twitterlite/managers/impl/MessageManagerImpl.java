@@ -1,36 +1,64 @@
 package com.twitterlite.managers.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.annotation.CheckForNull;
 
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.appengine.api.backends.BackendServiceFactory;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.QueryResultIterable;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.taskqueue.DeferredTask;
 import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
 import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Ref;
-import com.googlecode.objectify.TxnType;
+import com.googlecode.objectify.Result;
 import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 import com.googlecode.objectify.cmd.QueryKeys;
-import com.googlecode.objectify.util.TranslatingQueryResultIterator;
+import com.googlecode.objectify.util.ResultCache;
+import com.googlecode.objectify.util.ResultNow;
+import com.twitterlite.config.CONSTANTS;
 import com.twitterlite.managers.ListChunk;
 import com.twitterlite.managers.MessageManager;
-import com.twitterlite.managers.interceptors.TransactInterceptor.Transact;
-import com.twitterlite.models.LoadGroups.WithSender;
+import com.twitterlite.managers.impl.TimeLineCache.TimeLinePage;
 import com.twitterlite.models.message.Message;
+import com.twitterlite.models.message.Message.MessageGetDTO;
 import com.twitterlite.models.message.MessageReceiversIndex;
 import com.twitterlite.models.user.User;
+import com.twitterlite.models.user.UserCounterShard.Counter;
 import com.twitterlite.models.user.UserFollowedIndex;
+import com.twitterlite.models.user.UserFollowersIndex;
+import com.twitterlite.models.user.UserFollowersShard;
+import com.twitterlite.models.user.UserTimeLine;
 import com.twitterlite.util.CursorUtil;
+import com.twitterlite.util.TimeCursor;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -39,10 +67,14 @@ import static com.googlecode.objectify.ObjectifyService.*;
 public class MessageManagerImpl implements MessageManager {
 	
 	private ManagedMessageImplFactory msgFactory;
+	private EntityCache entityCache;
+	private TimeLineCache timeLineCache;
 	
 	@Inject
-	protected MessageManagerImpl(ManagedMessageImplFactory userFactory) {
+	protected MessageManagerImpl(ManagedMessageImplFactory userFactory, EntityCache entityCache, TimeLineCache timeLineCache) {
 		this.msgFactory = userFactory;
+		this.entityCache = entityCache;
+		this.timeLineCache = timeLineCache;
 	}
 	
 	// Assisted Injection
@@ -53,19 +85,10 @@ public class MessageManagerImpl implements MessageManager {
 	
 	
 	@Override
-	public Boolean isMessageSender(String msgKeyStr, String senderKeyStr) {
-		Key<Message> msgKey = Key.create(msgKeyStr);
-		Key<User> senderKey = Key.create(senderKeyStr);
-		return isMessageSender(msgKey, senderKey);
-	}
-
-	@Override
-	public Boolean isMessageSender(Key<Message> msgKey, Key<User> senderKey) {
-		Message msg = ofy().load().group(WithSender.class).type(Message.class).filter("id", msgKey.getId()).filter("sender", senderKey).first().now();
-		if (msg != null)
-			return Boolean.TRUE;
-		else
-			return Boolean.FALSE;
+	public void updateMessagesMetadata(Iterable<MessageGetDTO> dtos, Key<User> currentUser) {
+		String currentUserKey = currentUser.getString();
+		for (MessageGetDTO dto : dtos)
+			dto.isMessageFromCurrentUser = Boolean.valueOf(dto.sender != null && currentUserKey.equals(dto.sender.userKey));
 	}
 
 	@Override
@@ -75,40 +98,96 @@ public class MessageManagerImpl implements MessageManager {
 		return create(text, sender);
 	}
 	
+	/*
+	 * Not @Transact: the fan-out task is a named task, which cannot be added in a transaction.
+	 * The message and its receivers index are saved in their own transaction, the task is added once it is committed.
+	 */
 	@Override
-	@Transact(TxnType.REQUIRED)
-	public ManagedMessage create(String text, Ref<User> sender) throws IllegalArgumentException {
+	public ManagedMessage create(String text, final Ref<User> sender) throws IllegalArgumentException {
 		
-		Message msg = new Message(text, sender);
-		Key<Message> msgKey = ofy( ).save().entity(msg).now();
-		ofy().save().entity(new MessageReceiversIndex(msgKey));
+		// read out of the transaction so that posting does not contend with the new followers of the sender,
+		// the read is started before the message is saved
+		Map<Key<UserFollowersIndex>, UserFollowersIndex> followers = ofy().transactionless().load().keys(Collections.singletonList(UserFollowersIndex.key(sender.getKey())));
 		
-		addNewMessageReceivers(msgKey, sender.getKey());
+		final Message msg = new Message(text, sender);
+		Key<Message> msgKey = ofy().transactNew(new Work<Key<Message>>() {
+			@Override
+			public Key<Message> run() {
+				Key<Message> key = ofy().save().entity(msg).now();
+				ofy().save().entity(new MessageReceiversIndex(key, sender.getKey(), msg.getCreation()));
+				return key;
+			}
+		});
+		
+		UserFollowersIndex followersIndex = followers.get(UserFollowersIndex.key(sender.getKey()));
+		if (followersIndex == null || !followersIndex.isFanOutOnRead())
+			addNewMessageReceivers(msgKey, msg.getCreation(), sender.getKey());
+		UserCounters.increment(sender.getKey(), Counter.MESSAGES, 1);
 		
 		return msgFactory.create(msg);
 	}
 
+	/*
+	 * As for the users, the entity cache is invalidated once the transaction is committed
+	 */
 	public static class ManagedMessageImpl implements ManagedMessage {
 		private Message msg;
+		private EntityCache entityCache;
 		@Inject
-		public ManagedMessageImpl(@Assisted Message msg) {
+		public ManagedMessageImpl(@Assisted Message msg, EntityCache entityCache) {
 			this.msg = msg;
+			this.entityCache = entityCache;
 		}
 		@Override
 		public Message read() {
 			return this.msg;
 		}
 		@Override
-		@Transact(TxnType.REQUIRED)
 		public void update() {
-			ofy().save().entities(this.msg);
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					ofy().save().entities(msg);
+				}
+			});
+			entityCache.invalidate(this.msg.getKey());
 		}
+		/*
+		 * Out of a transaction the put of the message alone needs none. In a @Transact method
+		 * it is part of the transaction of the method, the entity cache is then invalidated before the commit
+		 * as for update.
+		 */
+		@Override
+		public Result<Void> updateAsync() {
+			final Result<Key<Message>> saved = ofy().save().entity(msg);
+			return new ResultCache<Void>() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected Void nowUncached() {
+					saved.now();
+					entityCache.invalidate(msg.getKey());
+					return null;
+				}
+			};
+		}
+		/*
+		 * The message is read in the transaction so that it is only counted down once
+		 */
 		@Override
-		@Transact(TxnType.REQUIRED)
 		public void delete() {
-			ofy().delete().entities(this.msg);
-			QueryKeys<MessageReceiversIndex> keys = ofy().load().type(MessageReceiversIndex.class).ancestor(msg).keys();
-			ofy().delete().keys(keys);
+			final boolean[] deleted = { false };
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					deleted[0] = ofy().load().key(msg.getKey()).now() != null;
+					ofy().delete().entities(msg);
+					QueryKeys<MessageReceiversIndex> keys = ofy().load().type(MessageReceiversIndex.class).ancestor(msg).keys();
+					ofy().delete().keys(keys);
+				}
+			});
+			entityCache.invalidate(this.msg.getKey());
+			if (deleted[0])
+				UserCounters.increment(msg.getSender().getKey(), Counter.MESSAGES, -1);
 		}
 	}
 
@@ -120,18 +199,73 @@ public class MessageManagerImpl implements MessageManager {
 
 	@Override
 	public ManagedMessage get(Key<Message> key) throws NotFoundException {
-		Message msg= ofy().load().group(WithSender.class).key(key).now();
+		ManagedMessage msg = getAsync(key).now();
 		if (msg == null)
 			throw new NotFoundException("No such message: " + key.getString());
-		return msgFactory.create(msg);
+		return msg;
+	}
+	
+	@Override
+	public Result<ManagedMessage> getAsync(final Key<Message> key) {
+		final Result<Map<Key<Message>, ManagedMessage>> msgs = getAll(Collections.singletonList(key));
+		return new ResultCache<ManagedMessage>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected @CheckForNull ManagedMessage nowUncached() {
+				return msgs.now().get(key);
+			}
+		};
+	}
+	
+	/*
+	 * The senders are not loaded with the messages, see getSenders
+	 */
+	@Override
+	public Result<Map<Key<Message>, ManagedMessage>> getAll(Collection<Key<Message>> keys) {
+		final Result<Map<Key<Message>, Message>> msgs = entityCache.getAsync(keys);
+		return new ResultCache<Map<Key<Message>, ManagedMessage>>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected Map<Key<Message>, ManagedMessage> nowUncached() {
+				Map<Key<Message>, ManagedMessage> managed = new LinkedHashMap<>();
+				for (Map.Entry<Key<Message>, Message> entry : msgs.now().entrySet())
+					managed.put(entry.getKey(), msgFactory.create(entry.getValue()));
+				return managed;
+			}
+		};
 	}
 
+	/*
+	 * The lists of messages are loaded without their sender, 
+	 * the distinct senders of a page are read at once from the entity cache
+	 */
+	@Override
+	public Map<Key<User>, User> getSenders(Iterable<Message> messages) {
+		return getSendersAsync(messages).now();
+	}
+	
+	@Override
+	public Result<Map<Key<User>, User>> getSendersAsync(Iterable<Message> messages) {
+		Set<Key<User>> senderKeys = new LinkedHashSet<>();
+		for (Message msg : messages)
+			senderKeys.add(msg.getSender().key());
+		return entityCache.getAsync(senderKeys);
+	}
+	
 	@Override
 	public ListChunk<Message> getAllMessages(String cursorStr, int limit) {
+		return getAllMessagesAsync(cursorStr, limit).now();
+	}
+	
+	/*
+	 * The query is started, the page is read when its messages are asked for
+	 */
+	@Override
+	public Result<ListChunk<Message>> getAllMessagesAsync(String cursorStr, int limit) {
 		Cursor cursor = CursorUtil.safeFromEncodedString(cursorStr);
-		Query<Message> query = ofy().load().group(WithSender.class).type(Message.class).order("-creation").limit(limit);
+		Query<Message> query = ofy().load().type(Message.class).order("-creation").limit(limit).chunk(limit);
 		QueryResultIterable<Message> iterable = query.startAt(cursor).iterable();
-		return new ListChunk<>(iterable);
+		return new ResultNow<>(new ListChunk<>(iterable, limit));
 	}
 	
 	@Override
@@ -142,15 +276,23 @@ public class MessageManagerImpl implements MessageManager {
 
 	@Override
 	public ListChunk<Message> getUserMessages(String cursorStr, int limit, Key<User> userKey) {
+		return getUserMessagesAsync(cursorStr, limit, userKey).now();
+	}
+	
+	/*
+	 * The query is started, the page is read when its messages are asked for
+	 */
+	@Override
+	public Result<ListChunk<Message>> getUserMessagesAsync(String cursorStr, int limit, Key<User> userKey) {
 		Cursor cursor = CursorUtil.safeFromEncodedString(cursorStr);
 		Query<Message> query = ofy().load()
-									.group(WithSender.class)
 									.type(Message.class)
 									.filter("sender", userKey)
 									.order("-creation")
-									.limit(limit);
+									.limit(limit)
+									.chunk(limit);
 		QueryResultIterable<Message> iterable = query.startAt(cursor).iterable();
-		return new ListChunk<>(iterable);
+		return new ResultNow<>(new ListChunk<>(iterable, limit));
 	}
 	
 	@Override
@@ -161,179 +303,780 @@ public class MessageManagerImpl implements MessageManager {
 
 	@Override
 	public ListChunk<Message> getUserTimeLine(String cursorStr, int limit, Key<User> userKey) {
-		Cursor cursor = CursorUtil.safeFromEncodedString(cursorStr);
-		QueryResultIterator<Key<MessageReceiversIndex>> keys = ofy().load()
-																.type(MessageReceiversIndex.class)
-																.limit(limit)
-																.startAt(cursor)
-																.filter("receivers", userKey)
-																.keys()
-																.iterator();
-		TranslatingQueryResultIterator<Key<MessageReceiversIndex>, Key<Message>> it = new TranslatingQueryResultIterator<Key<MessageReceiversIndex>, Key<Message>>(keys) {
+		return getUserTimeLineAsync(cursorStr, limit, userKey).now();
+	}
+	
+	/*
+	 * The first page is read from the timeline cache, when the limit is not above its page size.
+	 * The entries of the page are read, the messages when the page is asked for
+	 */
+	@Override
+	public Result<ListChunk<Message>> getUserTimeLineAsync(String cursorStr, int limit, Key<User> userKey) {
+		TimeCursor cursor = TimeCursor.safeFromEncodedString(cursorStr);
+		if (cursorStr != null || limit > CONSTANTS.TIMELINE_CACHE.PAGE_SIZE)
+			return loadPage(readTimeLinePage(userKey, cursor, limit), cursor);
+		
+		TimeLinePage cached = timeLineCache.get(userKey);
+		if (cached == null) {
+			if (timeLineCache.lock(userKey)) {
+				cached = new TimeLinePage(readTimeLinePage(userKey, cursor, CONSTANTS.TIMELINE_CACHE.PAGE_SIZE));
+				timeLineCache.put(userKey, cached);
+			} else {
+				cached = timeLineCache.await(userKey);
+				if (cached == null)
+					// the page is still being rebuilt, read without waiting more
+					return loadPage(readTimeLinePage(userKey, cursor, limit), cursor);
+			}
+		}
+		return loadPage(cached.getEntries(limit), cursor);
+	}
+	
+	/*
+	 * The reads which do not depend on each other are started together before waiting for any of them:
+	 * the timeline and the followed index in one batch get with the queries of the fan-out on read users,
+	 * then the queries of the messages of these users with the query of the receivers index.
+	 */
+	private static List<TimeLineMerger.Entry> readTimeLinePage(Key<User> userKey, TimeCursor cursor, int limit) {
+		TimeLineMerger merger = new TimeLineMerger(cursor);
+		
+		Map<Key<Object>, Object> indexes = loadAll(Arrays.<Key<?>>asList(UserTimeLine.key(userKey), UserFollowedIndex.key(userKey)));
+		QueryResultIterator<Key<UserFollowersShard>> fanOutOnRead = queryFanOutOnReadFollowed(userKey);
+		
+		UserTimeLine timeLine = (UserTimeLine)indexes.get(UserTimeLine.key(userKey));
+		if (timeLine == null)
+			timeLine = rebuildTimeLine(userKey);
+		
+		List<TimeLineMerger.Entry> pushed = readTimeLine(timeLine, cursor, limit);
+		QueryResultIterator<Key<MessageReceiversIndex>> received = null;
+		if (pushed.size() < limit && timeLine.isTruncated())
+			// the page goes past the end of the materialized timeline
+			received = queryTimeLine(userKey, cursor, limit);
+		
+		// the messages of the fan-out on read users are not pushed to the timelines
+		Set<Key<User>> senders = new LinkedHashSet<>();
+		while (fanOutOnRead.hasNext())
+			senders.add(UserFollowersShard.userOf(fanOutOnRead.next()));
+		List<QueryResultIterator<Message>> sent = new ArrayList<>();
+		for (Key<User> sender : senders)
+			sent.add(querySenderMessages(sender, cursor, Long.MAX_VALUE, limit));
+		
+		merger.add(received != null ? loadTimeLine(received) : pushed);
+		for (QueryResultIterator<Message> it : sent)
+			merger.add(toEntries(it));
+		
+		List<TimeLineMerger.Entry> page = merger.merge(limit);
+		
+		// the messages of a followed user older than its backfill horizon are read from its messages
+		// when the page goes past the horizon
+		UserFollowedIndex followedIndex = (UserFollowedIndex)indexes.get(UserFollowedIndex.key(userKey));
+		if (followedIndex != null && followedIndex.getHorizonUsers().size() > 0) {
+			long oldest = page.size() < limit ? Long.MIN_VALUE : page.get(page.size() - 1).getCreation();
+			sent.clear();
+			for (int i = 0; i < followedIndex.getHorizonUsers().size(); i++) {
+				long horizon = followedIndex.getHorizons().get(i).longValue();
+				if (horizon >= oldest)
+					sent.add(querySenderMessages(followedIndex.getHorizonUsers().get(i), cursor, horizon, limit));
+			}
+			for (QueryResultIterator<Message> it : sent)
+				merger.add(toEntries(it));
+			if (sent.size() > 0)
+				page = merger.merge(limit);
+		}
+		return page;
+	}
+	
+	/*
+	 * The messages not loaded by the queries are read from the entity cache
+	 */
+	private Result<ListChunk<Message>> loadPage(final List<TimeLineMerger.Entry> page, final TimeCursor cursor) {
+		List<Key<Message>> notLoaded = new ArrayList<>(page.size());
+		for (TimeLineMerger.Entry entry : page)
+			if (entry.getLoaded() == null)
+				notLoaded.add(entry.getMessage());
+		final Result<Map<Key<Message>, Message>> loaded = entityCache.getAsync(notLoaded);
+		return new ResultCache<ListChunk<Message>>() {
+			private static final long serialVersionUID = 1L;
 			@Override
-			protected Key<Message> translate(Key<MessageReceiversIndex> from) {
-				return from.getParent();
+			protected ListChunk<Message> nowUncached() {
+				List<Message> messages = new ArrayList<>(page.size());
+				for (TimeLineMerger.Entry entry : page) {
+					Message msg = entry.getLoaded() != null ? entry.getLoaded() : loaded.now().get(entry.getMessage());
+					// the message may have been deleted
+					if (msg != null)
+						messages.add(msg);
+				}
+				
+				TimeCursor next = page.size() > 0 ? page.get(page.size() - 1).getCursor() : cursor;
+				return new ListChunk<>(messages, next.encode());
 			}
 		};
-		Iterable<Message> messages = ofy().load().group(WithSender.class).keys(ListChunk.copyQueryResultIterator(it)).values();
-		return new ListChunk<>(messages, it.getCursor());
+	}
+	
+	/*
+	 * The messages of the materialized timeline after the cursor
+	 */
+	private static List<TimeLineMerger.Entry> readTimeLine(UserTimeLine timeLine, TimeCursor cursor, int limit) {
+		List<TimeLineMerger.Entry> entries = new ArrayList<>(limit);
+		List<Key<Message>> msgKeys = timeLine.getMessages();
+		List<Long> creations = timeLine.getCreations();
+		for (int i = 0; i < msgKeys.size() && entries.size() < limit; i++) {
+			long creation = creations.get(i).longValue();
+			if (cursor.isBefore(creation, msgKeys.get(i).getId()))
+				entries.add(new TimeLineMerger.Entry(msgKeys.get(i), creation));
+		}
+		return entries;
+	}
+	
+	/*
+	 * The users followed by the given one whose messages are not pushed to the timelines,
+	 * found in the shards of their followers: the followers written in the followers index
+	 * before it was sharded are moved to the shards by UserManager.migrateFollowIndexes.
+	 * The query is started, it is read by the iterator.
+	 */
+	private static QueryResultIterator<Key<UserFollowersShard>> queryFanOutOnReadFollowed(Key<User> userKey) {
+		return ofy().load()
+					.type(UserFollowersShard.class)
+					.filter("followerIds", userKey.getId())
+					.filter("fanOutOnRead", true)
+					.keys()
+					.iterator();
+	}
+	
+	/*
+	 * Starts the query of the most recent messages of the sender after the cursor and created at or before notAfter
+	 */
+	private static QueryResultIterator<Message> querySenderMessages(Key<User> sender, TimeCursor cursor, long notAfter, int limit) {
+		return ofy().load()
+					.type(Message.class)
+					.filter("sender", sender)
+					.filter("creation <=", Math.min(cursor.getCreation(), notAfter))
+					.order("-creation")
+					.limit(limit)
+					.chunk(limit)
+					.iterator();
+	}
+	
+	private static List<TimeLineMerger.Entry> toEntries(QueryResultIterator<Message> it) {
+		List<TimeLineMerger.Entry> entries = new ArrayList<>();
+		while (it.hasNext())
+			entries.add(new TimeLineMerger.Entry(it.next()));
+		return entries;
+	}
+	
+	/*
+	 * Starts the query of the most recent messages received by the user after the cursor, in the receivers index
+	 */
+	private static QueryResultIterator<Key<MessageReceiversIndex>> queryTimeLine(Key<User> userKey, TimeCursor cursor, int limit) {
+		return ofy().load()
+					.type(MessageReceiversIndex.class)
+					.filter("receivers", userKey)
+					.filter("creation <=", cursor.getCreation())
+					.order("-creation")
+					.limit(limit)
+					.chunk(limit)
+					.keys()
+					.iterator();
+	}
+	
+	/*
+	 * Loads the messages found in the receivers index
+	 */
+	private static List<TimeLineMerger.Entry> loadTimeLine(QueryResultIterator<Key<MessageReceiversIndex>> keys) {
+		// a receiver may be found in several shards of the same message
+		Set<Key<Message>> msgKeys = new LinkedHashSet<>();
+		while (keys.hasNext())
+			msgKeys.add(keys.next().<Message>getParent());
+		List<TimeLineMerger.Entry> entries = new ArrayList<>(msgKeys.size());
+		for (Message msg : ofy().load().keys(msgKeys).values())
+			entries.add(new TimeLineMerger.Entry(msg));
+		return entries;
+	}
+	
+	/*
+	 * Builds the timeline of a user who does not have one yet (users created before the timelines)
+	 */
+	private static UserTimeLine rebuildTimeLine(final Key<User> userKey) {
+		List<TimeLineMerger.Entry> entries = loadTimeLine(queryTimeLine(userKey, TimeCursor.START, UserTimeLine.CAPACITY));
+		final UserTimeLine built = new UserTimeLine(userKey, entries.size() >= UserTimeLine.CAPACITY);
+		for (TimeLineMerger.Entry entry : entries)
+			built.add(entry.getMessage(), entry.getCreation());
+		
+		// a fan-out may have created the timeline in the meantime
+		return ofy().transact(new Work<UserTimeLine>() {
+			@Override
+			public UserTimeLine run() {
+				UserTimeLine timeLine = ofy().load().key(UserTimeLine.key(userKey)).now();
+				if (timeLine != null)
+					return timeLine;
+				ofy().save().entity(built);
+				return built;
+			}
+		});
+	}
+	
+	/*
+	 * Adds the messages to the timelines of the receivers.
+	 * Each timeline is updated in its own transaction so that concurrent fan-outs don't overwrite each other,
+	 * the timelines are root entities so that it only contends with the other writes of the same timeline,
+	 * and the transactions of TIMELINE_WRITE_CONCURRENCY receivers are run together: each step (begin, get, put, commit)
+	 * is issued for all of them before waiting for any, a few round trips whatever the number of receivers.
+	 * The timelines whose commit failed on a concurrent update are updated again in the next round.
+	 */
+	private static void addToTimeLines(List<Key<User>> receivers, List<Key<Message>> msgKeys, List<Long> creations) {
+		// the caching datastore service keeps the entity memcache of the timelines up to date
+		AsyncDatastoreService ds = factory().createAsyncDatastoreService(DatastoreServiceConfig.Builder.withDefaults(), true);
+		for (List<Key<User>> group : Lists.partition(receivers, CONSTANTS.FAN_OUT.TIMELINE_WRITE_CONCURRENCY)) {
+			List<Key<User>> remaining = group;
+			for (int round = 0; remaining.size() > 0; round++) {
+				if (round == CONSTANTS.FAN_OUT.TIMELINE_WRITE_ROUNDS)
+					// the task is retried
+					throw new ConcurrentModificationException(remaining.size() + " timelines still contended after " + round + " rounds");
+				remaining = updateTimeLines(ds, remaining, msgKeys, creations);
+			}
+			TimeLineCache.invalidate(group);
+		}
+	}
+	
+	/*
+	 * Returns the receivers whose transaction failed on a concurrent update
+	 */
+	private static List<Key<User>> updateTimeLines(AsyncDatastoreService ds, List<Key<User>> receivers, List<Key<Message>> msgKeys, List<Long> creations) {
+		List<Future<Transaction>> begun = new ArrayList<>(receivers.size());
+		for (int i = 0; i < receivers.size(); i++)
+			begun.add(ds.beginTransaction());
+		List<Transaction> txns = new ArrayList<>(receivers.size());
+		try {
+			List<Future<Entity>> read = new ArrayList<>(receivers.size());
+			for (int i = 0; i < receivers.size(); i++) {
+				txns.add(Futures.getUnchecked(begun.get(i)));
+				read.add(ds.get(txns.get(i), UserTimeLine.key(receivers.get(i)).getRaw()));
+			}
+			
+			List<Future<com.google.appengine.api.datastore.Key>> written = new ArrayList<>(receivers.size());
+			List<Integer> updated = new ArrayList<>(receivers.size());
+			for (int i = 0; i < receivers.size(); i++) {
+				UserTimeLine timeLine;
+				try {
+					timeLine = ofy().toPojo(read.get(i).get());
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof EntityNotFoundException))
+						throw Throwables.propagate(e.getCause());
+					// the older messages will be read from the receivers index
+					timeLine = new UserTimeLine(receivers.get(i), true);
+				}
+				boolean added = false;
+				for (int j = 0; j < msgKeys.size(); j++)
+					added |= timeLine.add(msgKeys.get(j), creations.get(j).longValue());
+				if (added) {
+					written.add(ds.put(txns.get(i), ofy().toEntity(timeLine)));
+					updated.add(Integer.valueOf(i));
+				} else {
+					txns.get(i).rollbackAsync();
+				}
+			}
+			for (Future<com.google.appengine.api.datastore.Key> put : written)
+				Futures.getUnchecked(put);
+			
+			List<Future<Void>> committed = new ArrayList<>(updated.size());
+			for (Integer i : updated)
+				committed.add(txns.get(i.intValue()).commitAsync());
+			List<Key<User>> failed = new ArrayList<>();
+			for (int k = 0; k < committed.size(); k++) {
+				try {
+					committed.get(k).get();
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof ConcurrentModificationException))
+						throw Throwables.propagate(e.getCause());
+					failed.add(receivers.get(updated.get(k).intValue()));
+				}
+			}
+			return failed;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} finally {
+			for (Transaction txn : txns)
+				if (txn.isActive())
+					txn.rollbackAsync();
+		}
 	}
 
+	/*
+	 * All the receivers tasks run on the message backend
+	 */
+	static void enqueueOnBackend(DeferredTask task) {
+		QueueFactory.getDefaultQueue().add(TaskOptions
+											.Builder
+											.withPayload(task)
+											.header("Host", BackendServiceFactory.getBackendService().getBackendAddress("message-backend")));
+	}
+	
+	/*
+	 * One batch get of keys of different kinds, the callers cast the entities they look up
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<Key<Object>, Object> loadAll(List<Key<?>> keys) {
+		return ofy().load().keys((List<Key<Object>>)(List<?>)keys);
+	}
+	
+	/*
+	 * A named task is only added once, the following adds are ignored
+	 */
+	static void enqueueOnBackend(DeferredTask task, String name, long countdownMillis) {
+		try {
+			QueueFactory.getDefaultQueue().add(TaskOptions
+												.Builder
+												.withPayload(task)
+												.taskName(name)
+												.countdownMillis(countdownMillis)
+												.header("Host", BackendServiceFactory.getBackendService().getBackendAddress("message-backend")));
+		} catch (TaskAlreadyExistsException e) {
+			// already scheduled
+		}
+	}
+	
 	// There are ways to create a more general recursive task
 	// However this is out of the scope of this example
 	public static class ProcessReceiversTask implements DeferredTask {
 		private static final long serialVersionUID = 2138600237595508391L;
 		
+		// number of messages per batch
+		public static final int MIN_BATCH = 25;
+		public static final int MAX_BATCH = 500;
+		
 		private Key<User> sender;
 		private Key<User> receiver;
 		private boolean addAction;
 		
+		// the backfill window: number of messages still to add and creation of the oldest one
+		private int backfillRemaining;
+		private long backfillNotBefore;
+		
 		@CheckForNull
 		private Cursor currentCursor;
-		private int limit;
+		private FanOutBatchSizer sizer;
+		
+		public ProcessReceiversTask(boolean addAction, Key<User> sender, Key<User> receiver, @CheckForNull Cursor cursor, FanOutBatchSizer sizer) {
+			this(addAction, sender, receiver, CONSTANTS.FAN_OUT.BACKFILL_MAX_MESSAGES, 
+					System.currentTimeMillis() - CONSTANTS.FAN_OUT.BACKFILL_MAX_AGE_MILLIS, cursor, sizer);
+		}
 		
-		public ProcessReceiversTask(boolean addAction, Key<User> sender, Key<User> receiver, @CheckForNull Cursor cursor, int limit) {
+		private ProcessReceiversTask(boolean addAction, Key<User> sender, Key<User> receiver, int backfillRemaining, long backfillNotBefore, 
+										@CheckForNull Cursor cursor, FanOutBatchSizer sizer) {
 			checkNotNull(sender);
 			checkNotNull(receiver);
+			checkNotNull(sizer);
 			
 			this.sender = sender;
 			this.receiver = receiver;
 			this.addAction = addAction;
+			this.backfillRemaining = backfillRemaining;
+			this.backfillNotBefore = backfillNotBefore;
 			
 			this.currentCursor = cursor;
-			if (limit < 0 || limit > 100)
-				this.limit = 25; // default
-			else
-				this.limit = limit;
+			this.sizer = sizer;
 		}
 		
 		@Override
 		public void run() {
-			// the most recent messages first
-			QueryResultIterable<Message> msgs = ofy().load().type(Message.class)
-															.filter("sender", sender)
-															.order("-creation")
-															.startAt(currentCursor)
-															.limit(limit)
-															.iterable();
-			
-			List<MessageReceiversIndex> indexes =  new LinkedList<>();
-			QueryResultIterator<Message> it = msgs.iterator();
-			while (it.hasNext()) {
-				// TODO: 
-				// we should do this in yet another task in the case a user
-				// has hundreds of thousands of followers 
-				// However for the moment it is ok because
-				// each MessageReceiverIndex can have up to 5000 receivers (datastore limit)
-				// In the case we had multiple MessageReceiveIndexes for a message
-				// we should find the most recent index object and add the receiver
-				Message msg = it.next();
-				MessageReceiversIndex index = ofy().load()
-													.type(MessageReceiversIndex.class)
-													.ancestor(msg)
-													.first()
-													.now();
+			// before the first query, the messages fanned out with the previous followers are found by it (see FollowGraph)
+			if (currentCursor == null)
+				FollowGraph.get().refresh(sender);
+			Cursor cursor = currentCursor;
+			int size;
+			while ((size = sizer.next(FanOutBatchSizer.getRemainingMillis())) > 0) {
+				long start = System.currentTimeMillis();
+				QueryResultIterator<?> it;
+				int count;
+				int limit = size;
+				if (addAction) {
+					// the most recent messages first, one more than the window to know if it ends in this batch
+					limit = Math.min(size, backfillRemaining + 1);
+					QueryResultIterator<Message> msgs = ofy().load()
+																.type(Message.class)
+																.filter("sender", sender)
+																.order("-creation")
+																.startAt(cursor)
+																.limit(limit)
+																.chunk(limit)
+																.iterator();
+					List<Message> batch = ListChunk.copyQueryResultIterator(msgs);
+					List<Message> window = new ArrayList<>(batch.size());
+					for (Message msg : batch) {
+						if (window.size() >= backfillRemaining || msg.getCreation() < backfillNotBefore)
+							break;
+						window.add(msg);
+					}
+					addBatch(window);
+					if (window.size() < batch.size()) {
+						// the older messages are not backfilled
+						setBackfillHorizon(batch.get(window.size()).getCreation());
+						return;
+					}
+					backfillRemaining -= window.size();
+					it = msgs;
+					count = batch.size();
+				} else {
+					// only the shards holding the receiver, the shards written before they had a sender
+					// are found once MessageManager.migrateReceiversIndexSenders has run
+					QueryResultIterator<MessageReceiversIndex> shards = ofy().load()
+																				.type(MessageReceiversIndex.class)
+																				.filter("sender", sender)
+																				.filter("receivers", receiver)
+																				.startAt(cursor)
+																				.limit(size)
+																				.chunk(size)
+																				.iterator();
+					List<MessageReceiversIndex> batch = ListChunk.copyQueryResultIterator(shards);
+					removeBatch(batch);
+					it = shards;
+					count = batch.size();
+				}
+				sizer.record(count, System.currentTimeMillis() - start);
 				
-				// TODO: what should we do if the receiver is already in the list ?
-				if (addAction)
-					index.getReceivers().add(receiver);
-				else
-					index.getReceivers().remove(receiver);
-				indexes.add(index);
+				if (count < limit)
+					return;
+				cursor = it.getCursor();
 			}
+			enqueueOnBackend(new ProcessReceiversTask(addAction, sender, receiver, backfillRemaining, backfillNotBefore, cursor, sizer));
+		}
+		
+		private void setBackfillHorizon(final long horizon) {
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					UserFollowedIndex index = ofy().load().key(UserFollowedIndex.key(receiver)).now();
+					// the receiver may have unfollowed the sender in the meantime
+					if (index == null || !index.isFollowing(sender))
+						return;
+					index.setHorizon(sender, horizon);
+					ofy().save().entity(index);
+				}
+			});
+			TimeLineCache.invalidate(Collections.singletonList(receiver));
+		}
+		
+		private void addBatch(final List<Message> batch) {
+			if (batch.size() == 0)
+				return;
+			
+			// the receivers added after the fan-out go to the head shard of the messages,
+			// all the head shards of the batch are read at once
+			List<Key<MessageReceiversIndex>> headKeys = new ArrayList<>(batch.size());
+			for (Message msg : batch)
+				headKeys.add(MessageReceiversIndex.key(msg.getKey(), MessageReceiversIndex.HEAD_SHARD_ID));
+			Map<Key<MessageReceiversIndex>, MessageReceiversIndex> heads = ofy().load().keys(headKeys);
+			
+			List<MessageReceiversIndex> indexes = new ArrayList<>(batch.size());
+			List<MessageReceiversIndex> fullHeads = new ArrayList<>();
+			for (Message msg : batch) {
+				MessageReceiversIndex head = heads.get(MessageReceiversIndex.key(msg.getKey(), MessageReceiversIndex.HEAD_SHARD_ID));
+				if (head == null)
+					head = new MessageReceiversIndex(msg.getKey(), sender, msg.getCreation());
+				if (head.getReceivers().contains(receiver))
+					continue;
+				if (head.isFull()) {
+					fullHeads.add(head);
+					continue;
+				}
+				head.getReceivers().add(receiver);
+				indexes.add(head);
+			}
+			if (fullHeads.size() > 0)
+				addToSpillShards(fullHeads, indexes);
+			// all the indexes of the batch in one put
+			if (indexes.size() > 0)
+				ofy().save().entities(indexes).now();
 			
-			if (indexes.size() == 0)
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					UserTimeLine timeLine = ofy().load().key(UserTimeLine.key(receiver)).now();
+					if (timeLine == null)
+						// will be rebuilt from the receivers index
+						return;
+					boolean updated = false;
+					for (Message msg : batch)
+						updated |= timeLine.add(msg.getKey(), msg.getCreation());
+					if (updated)
+						ofy().save().entity(timeLine);
+				}
+			});
+			TimeLineCache.invalidate(Collections.singletonList(receiver));
+		}
+		
+		/*
+		 * The receiver is added to the last spill shard of the full head shards,
+		 * all read at once, or to a new spill shard when it is full too
+		 */
+		private void addToSpillShards(List<MessageReceiversIndex> fullHeads, List<MessageReceiversIndex> indexes) {
+			List<Key<MessageReceiversIndex>> spillKeys = new ArrayList<>(fullHeads.size());
+			for (MessageReceiversIndex head : fullHeads)
+				if (head.getSpillShardCount() > 0)
+					spillKeys.add(MessageReceiversIndex.key(head.getMessage(), head.getLastSpillShardId()));
+			Map<Key<MessageReceiversIndex>, MessageReceiversIndex> spills = ofy().load().keys(spillKeys);
+			
+			for (MessageReceiversIndex head : fullHeads) {
+				MessageReceiversIndex spill = null;
+				if (head.getSpillShardCount() > 0) {
+					spill = spills.get(MessageReceiversIndex.key(head.getMessage(), head.getLastSpillShardId()));
+					if (spill == null)
+						// counted in the head but not saved
+						spill = new MessageReceiversIndex(head.getMessage(), sender, head.getLastSpillShardId(), 
+															head.getCreation(), new LinkedList<Key<User>>());
+				}
+				if (spill != null && spill.getReceivers().contains(receiver))
+					continue;
+				if (spill == null || spill.isFull()) {
+					spill = new MessageReceiversIndex(head.getMessage(), sender, head.addSpillShard(), 
+														head.getCreation(), new LinkedList<Key<User>>());
+					indexes.add(head);
+				}
+				spill.getReceivers().add(receiver);
+				indexes.add(spill);
+			}
+		}
+		
+		private void removeBatch(final List<MessageReceiversIndex> batch) {
+			if (batch.size() == 0)
 				return;
 			
-			ofy().save().entities(indexes);
-			QueueFactory.getDefaultQueue().add(TaskOptions
-												.Builder
-												.withPayload(new ProcessReceiversTask(addAction, sender, receiver, it.getCursor(), 25))
-												.header("Host", BackendServiceFactory.getBackendService().getBackendAddress("message-backend")));
+			for (MessageReceiversIndex shard : batch)
+				shard.getReceivers().remove(receiver);
+			ofy().save().entities(batch).now();
+			
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					UserTimeLine timeLine = ofy().load().key(UserTimeLine.key(receiver)).now();
+					if (timeLine == null)
+						return;
+					boolean updated = false;
+					for (MessageReceiversIndex shard : batch)
+						updated |= timeLine.remove(shard.getMessage());
+					if (updated)
+						ofy().save().entity(timeLine);
+				}
+			});
+			TimeLineCache.invalidate(Collections.singletonList(receiver));
 		}
 	}
 	
 	@Override
 	public void addUserMessagesReceiver(Key<User> senderKey, Key<User> receiverKey) {
-		QueueFactory.getDefaultQueue().add(TaskOptions
-											.Builder
-											.withPayload(new ProcessReceiversTask(true, senderKey, receiverKey, null, 25))
-											.header("Host", BackendServiceFactory.getBackendService().getBackendAddress("message-backend")));
+		FanOutBatchSizer sizer = new FanOutBatchSizer(ProcessReceiversTask.MIN_BATCH, ProcessReceiversTask.MAX_BATCH);
+		enqueueOnBackend(new ProcessReceiversTask(true, senderKey, receiverKey, null, sizer));
 	}
 
 	@Override
 	public void removeUserMessagesReceiver(Key<User> senderKey, Key<User> receiverKey) {
-		QueueFactory.getDefaultQueue().add(TaskOptions
-											.Builder
-											.withPayload(new ProcessReceiversTask(false, senderKey, receiverKey, null, 25))
-											.header("Host", BackendServiceFactory.getBackendService().getBackendAddress("message-backend")));
+		FanOutBatchSizer sizer = new FanOutBatchSizer(ProcessReceiversTask.MIN_BATCH, ProcessReceiversTask.MAX_BATCH);
+		enqueueOnBackend(new ProcessReceiversTask(false, senderKey, receiverKey, null, sizer));
 	}
 
-	public static class AddNewMessageReceiversTask implements DeferredTask {
-		private static final long serialVersionUID = -1111965433577784046L;
-
-		private Key<Message> msgKey;
-		private Key<User> followedKey;
+	/*
+	 * Sets the sender of the receivers index shards of all the messages, in a transaction per message
+	 * so that a receiver added to the head shard in the meantime is not overwritten
+	 */
+	public static class MigrateReceiversIndexSendersTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+		
+		private static final int LIMIT = 100;
 		
 		@CheckForNull
 		private Cursor currentCursor;
-		private int limit;
 		
-		public AddNewMessageReceiversTask(Key<Message> msgKey, Key<User> followedKey, @CheckForNull Cursor cursor, int limit) { 
-			this.msgKey = msgKey;
-			this.followedKey = followedKey;
-			
+		public MigrateReceiversIndexSendersTask(@CheckForNull Cursor cursor) {
 			this.currentCursor = cursor;
-			if (limit < 0 || limit > 100)
-				this.limit = 25; // default
-			else
-				this.limit = limit;
 		}
 		
 		@Override
 		public void run() {
-			QueryResultIterator<Key<UserFollowedIndex>> keys = ofy().load()
-																	.type(UserFollowedIndex.class)
-																	.limit(limit)
-																	.startAt(currentCursor)
-																	.filter("followed", followedKey)
-																	.keys()
-																	.iterator();
-			TranslatingQueryResultIterator<Key<UserFollowedIndex>, Key<User>> it = new TranslatingQueryResultIterator<Key<UserFollowedIndex>, Key<User>>(keys) {
-				@Override
-				protected Key<User> translate(Key<UserFollowedIndex> from) {
-					return from.getParent();
-				}
-			};
-			
-			final List<Key<User>> userKeys = ListChunk.copyQueryResultIterator(it);
-			
-			if (userKeys.size() == 0)
+			QueryResultIterator<Message> it = ofy().load().type(Message.class).startAt(currentCursor).limit(LIMIT).iterator();
+			List<Message> msgs = ListChunk.copyQueryResultIterator(it);
+			if (msgs.size() == 0)
 				return;
 			
-			ofy().transact(new VoidWork() {
-				@Override
-				public void vrun() {
-					// for the moment only one index
-					MessageReceiversIndex index = ofy().load().type(MessageReceiversIndex.class).ancestor(msgKey).first().now();
-					index.getReceivers().addAll(userKeys);
-					ofy().save().entity(index);
+			for (final Message msg : msgs) {
+				ofy().transact(new VoidWork() {
+					@Override
+					public void vrun() {
+						List<MessageReceiversIndex> updated = new ArrayList<>();
+						for (MessageReceiversIndex shard : ofy().load().type(MessageReceiversIndex.class).ancestor(msg)) {
+							if (shard.getSender() != null)
+								continue;
+							shard.setSender(msg.getSender().key());
+							updated.add(shard);
+						}
+						ofy().save().entities(updated);
+					}
+				});
+			}
+			
+			enqueueOnBackend(new MigrateReceiversIndexSendersTask(it.getCursor()));
+		}
+	}
+	
+	@Override
+	public void migrateReceiversIndexSenders() {
+		enqueueOnBackend(new MigrateReceiversIndexSendersTask(null));
+	}
+	
+	/*
+	 * Pushes together to the followers the messages the sender posted during a window of COALESCING_WINDOW_MILLIS.
+	 * The window is derived from the creation time, so the posts don't write anything to schedule it:
+	 * the task named after the window is added by each post and runs once the window is over,
+	 * then it finds the messages of the window with a query.
+	 */
+	public static class FanOutPendingMessagesTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+		
+		// maximum number of messages pushed by a fan-out
+		public static final int MAX_MESSAGES = 20;
+		
+		private Key<User> sender;
+		private long window;
+		
+		public FanOutPendingMessagesTask(Key<User> sender, long window) {
+			checkNotNull(sender);
+			this.sender = sender;
+			this.window = window;
+		}
+		
+		public static String name(Key<User> sender, long window) {
+			return "fanout-" + sender.getId() + "-" + window;
+		}
+		
+		public static long windowOf(long creation) {
+			return creation / CONSTANTS.FAN_OUT.COALESCING_WINDOW_MILLIS;
+		}
+		
+		/*
+		 * The end of the window, plus the time for the last posts to be committed and found by the query
+		 */
+		public static long runAt(long window) {
+			return (window + 1) * CONSTANTS.FAN_OUT.COALESCING_WINDOW_MILLIS + CONSTANTS.FAN_OUT.COALESCING_GRACE_MILLIS;
+		}
+		
+		@Override
+		public void run() {
+			long start = window * CONSTANTS.FAN_OUT.COALESCING_WINDOW_MILLIS;
+			// a post which was rolled back is not found, the messages deleted since are not pushed
+			List<Message> msgs = ofy().load()
+										.type(Message.class)
+										.filter("sender", sender)
+										.filter("creation >=", start)
+										.filter("creation <", start + CONSTANTS.FAN_OUT.COALESCING_WINDOW_MILLIS)
+										.order("-creation")
+										.list();
+			boolean first = true;
+			for (List<Message> part : Lists.partition(msgs, MAX_MESSAGES)) {
+				List<Key<Message>> msgKeys = new ArrayList<>(part.size());
+				List<Long> creations = new ArrayList<>(part.size());
+				for (Message msg : part) {
+					msgKeys.add(msg.getKey());
+					creations.add(Long.valueOf(msg.getCreation()));
 				}
-			});
+				FanOutBatchSizer sizer = new FanOutBatchSizer(AddNewMessageReceiversTask.MIN_BATCH, AddNewMessageReceiversTask.MAX_BATCH);
+				AddNewMessageReceiversTask task = new AddNewMessageReceiversTask(msgKeys, creations, sender, MessageReceiversIndex.FIRST_FAN_OUT_SHARD_ID, 0, sizer);
+				// the first messages are pushed by this task, the others by their own tasks
+				if (first)
+					task.run();
+				else
+					enqueueOnBackend(task);
+				first = false;
+			}
+		}
+	}
+	
+	/*
+	 * Pushes messages of the same sender to its followers: the followers are read from the follow graph
+	 * of the backend and each batch of followers is written in the receivers index shards of all the messages.
+	 */
+	public static class AddNewMessageReceiversTask implements DeferredTask {
+		private static final long serialVersionUID = -1111965433577784046L;
+		
+		// number of receivers written per batch, summed over the messages
+		public static final int MIN_BATCH = MessageReceiversIndex.SHARD_CAPACITY;
+		public static final int MAX_BATCH = 20 * MessageReceiversIndex.SHARD_CAPACITY;
+
+		private ArrayList<Key<Message>> msgKeys;
+		private ArrayList<Long> creations;
+		private Key<User> followedKey;
+		
+		// id of the next shard to write, the same for all the messages
+		private long shard;
+		
+		// the followers are sorted by id, the next task starts after the last one written
+		// so that the followers changed in between do not shift the others
+		private long lastFollowerId;
+		private FanOutBatchSizer sizer;
+		
+		public AddNewMessageReceiversTask(List<Key<Message>> msgKeys, List<Long> creations, Key<User> followedKey, long shard, long lastFollowerId, FanOutBatchSizer sizer) { 
+			checkArgument(msgKeys.size() > 0 && msgKeys.size() == creations.size());
+			checkArgument(shard >= MessageReceiversIndex.FIRST_FAN_OUT_SHARD_ID);
+			checkNotNull(sizer);
+			this.msgKeys = new ArrayList<>(msgKeys);
+			this.creations = new ArrayList<>(creations);
+			this.followedKey = followedKey;
+			this.shard = shard;
 			
-			QueueFactory.getDefaultQueue().add(TaskOptions
-												.Builder
-												.withPayload(new AddNewMessageReceiversTask(msgKey, followedKey, it.getCursor(), 25))
-												.header("Host", BackendServiceFactory.getBackendService().getBackendAddress("message-backend")));
+			this.lastFollowerId = lastFollowerId;
+			this.sizer = sizer;
+		}
+		
+		@Override
+		public void run() {
+			long[] followers = FollowGraph.get().getFollowers(followedKey);
+			int next = Arrays.binarySearch(followers, lastFollowerId);
+			next = next >= 0 ? next + 1 : -next - 1;
+			int size;
+			while ((size = sizer.next(FanOutBatchSizer.getRemainingMillis())) > 0) {
+				if (next >= followers.length)
+					return;
+				// the followers of the batch are written once per message, in full shards except the last one
+				size = Math.max(MessageReceiversIndex.SHARD_CAPACITY, size / msgKeys.size());
+				size = size - size % MessageReceiversIndex.SHARD_CAPACITY;
+				long start = System.currentTimeMillis();
+				
+				int end = Math.min(followers.length, next + size);
+				List<Key<User>> userKeys = new ArrayList<>(end - next);
+				for (int i = next; i < end; i++)
+					userKeys.add(Key.create(User.class, followers[i]));
+				
+				// The shards are only written: nothing to read and no transaction needed.
+				// All the shards of the batch are written in one put.
+				// A retried task starts again from the same shard id and rewrites the shards.
+				List<MessageReceiversIndex> shards = new ArrayList<>();
+				for (List<Key<User>> receivers : Lists.partition(userKeys, MessageReceiversIndex.SHARD_CAPACITY)) {
+					for (int i = 0; i < msgKeys.size(); i++)
+						shards.add(new MessageReceiversIndex(msgKeys.get(i), followedKey, shard, creations.get(i).longValue(), new ArrayList<>(receivers)));
+					shard++;
+				}
+				ofy().save().entities(shards).now();
+				addToTimeLines(userKeys, msgKeys, creations);
+				
+				sizer.record(userKeys.size() * msgKeys.size(), System.currentTimeMillis() - start);
+				
+				lastFollowerId = followers[end - 1];
+				next = end;
+			}
+			if (next < followers.length)
+				enqueueOnBackend(new AddNewMessageReceiversTask(msgKeys, creations, followedKey, shard, lastFollowerId, sizer));
 		}
 		
 	}
 	
+	/*
+	 * Adds the fan-out task of the window of the message, which is only added once: nothing is written
+	 * by the post but the message, the posts of a sender don't contend on any entity group.
+	 * Called once the message is committed, named tasks cannot be added in a transaction.
+	 */
 	@Override
-	public void addNewMessageReceivers(Key<Message> msgKey, Key<User> followedKey) {
-		QueueFactory.getDefaultQueue().add(TaskOptions
-											.Builder
-											.withPayload(new AddNewMessageReceiversTask(msgKey, followedKey, null, 25))
-											.header("Host", BackendServiceFactory.getBackendService().getBackendAddress("message-backend")));
+	public void addNewMessageReceivers(Key<Message> msgKey, long creation, Key<User> followedKey) {
+		long window = FanOutPendingMessagesTask.windowOf(creation);
+		enqueueOnBackend(new FanOutPendingMessagesTask(followedKey, window), 
+							FanOutPendingMessagesTask.name(followedKey, window), 
+							Math.max(0, FanOutPendingMessagesTask.runAt(window) - System.currentTimeMillis()));
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,209 @@
+package com.twitterlite.managers.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.io.BaseEncoding;
+import com.google.inject.Singleton;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.twitterlite.config.CONSTANTS;
+import com.twitterlite.managers.SessionManager;
+import com.twitterlite.models.session.RevokedSession;
+import com.twitterlite.models.session.RevokedSessions;
+import com.twitterlite.models.session.SessionSecret;
+import com.twitterlite.models.user.User;
+
+import static com.google.common.base.Preconditions.*;
+
+import static com.googlecode.objectify.ObjectifyService.*;
+
+/*
+ * A session token is <user key>.<expiration>.<token id>.<signature>, the signature being
+ * the HMAC-SHA256 of the first three parts with the SessionSecret.
+ * The tokens revoked by a logout are each kept in a RevokedSession, read by key and cached in the instance
+ * for REVOCATION_REFRESH_MILLIS.
+ * 
+ * Without token, only the logged in sessions are cached in the instance: a login is seen at once by all the instances,
+ * a logout is seen at once by the instance which served it and by the others after LOCAL_CACHE_MILLIS.
+ */
+@Singleton
+public class SessionManagerImpl implements SessionManager {
+
+	private static final Logger log = Logger.getLogger(SessionManagerImpl.class.getSimpleName());
+	
+	private static final String HMAC = "HmacSHA256";
+	private static final int SECRET_BYTES = 32;
+	private static final BaseEncoding BASE64 = BaseEncoding.base64Url().omitPadding();
+	
+	private final SecureRandom random = new SecureRandom();
+	
+	private final Cache<String, Key<User>> localSessions = CacheBuilder.newBuilder()
+																		.expireAfterWrite(CONSTANTS.SESSION.LOCAL_CACHE_MILLIS, TimeUnit.MILLISECONDS)
+																		.maximumSize(CONSTANTS.SESSION.LOCAL_CACHE_SIZE)
+																		.build();
+	
+	@CheckForNull
+	private volatile SecretKeySpec secret;
+	
+	// whether the tokens are revoked
+	private final LoadingCache<String, Boolean> revoked = CacheBuilder.newBuilder()
+																		.expireAfterWrite(CONSTANTS.SESSION.REVOCATION_REFRESH_MILLIS, TimeUnit.MILLISECONDS)
+																		.maximumSize(CONSTANTS.SESSION.LOCAL_CACHE_SIZE)
+																		.build(new CacheLoader<String, Boolean>() {
+																			@Override
+																			public Boolean load(String tokenId) {
+																				RevokedSession session = ofy().transactionless().load().key(RevokedSession.key(tokenId)).now();
+																				return Boolean.valueOf(session != null || getPreviouslyRevoked().contains(tokenId));
+																			}
+																		});
+	// the tokens of RevokedSessions, read once
+	@CheckForNull
+	private volatile Set<String> previouslyRevoked;
+	
+	private static String memcacheKey(String sessionId) {
+		return CONSTANTS.MEMCACHE.CURRENT_USER_KEY + sessionId;
+	}
+	
+	@Override
+	public Optional<Key<User>> getUser(String sessionId, @CheckForNull String token) {
+		checkNotNull(sessionId);
+		if (token != null)
+			return getTokenUser(token);
+		
+		Key<User> key = localSessions.getIfPresent(sessionId);
+		if (key != null)
+			return Optional.of(key);
+		
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		String keyStr = (String)mem.get(memcacheKey(sessionId));
+		if (keyStr == null)
+			return Optional.absent();
+		key = Key.create(keyStr);
+		localSessions.put(sessionId, key);
+		return Optional.of(key);
+	}
+
+	@Override
+	public String login(String sessionId, Key<User> user) {
+		checkNotNull(sessionId);
+		checkNotNull(user);
+		// the session of the remote address is kept for the clients which don't send the token
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		mem.put(memcacheKey(sessionId), user.getString(), Expiration.byDeltaSeconds(CONSTANTS.MEMCACHE.SESSION_EXPIRATION_SEC));
+		localSessions.put(sessionId, user);
+		
+		long expiration = System.currentTimeMillis() + CONSTANTS.MEMCACHE.SESSION_EXPIRATION_SEC * 1000L;
+		String payload = user.getString() + "." + Long.toString(expiration, Character.MAX_RADIX) 
+							+ "." + Long.toString(random.nextLong() & Long.MAX_VALUE, Character.MAX_RADIX);
+		return payload + "." + sign(payload);
+	}
+
+	/*
+	 * The session of the remote address is shared by the clients behind it: it is only deleted
+	 * by the logouts without token, which used it
+	 */
+	@Override
+	public void logout(String sessionId, @CheckForNull String token) {
+		checkNotNull(sessionId);
+		if (token == null) {
+			localSessions.invalidate(sessionId);
+			MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+			mem.delete(memcacheKey(sessionId));
+		} else if (getTokenUser(token).isPresent()) {
+			String[] parts = token.split("\\.");
+			revoke(parts[2], Long.parseLong(parts[1], Character.MAX_RADIX));
+		}
+	}
+	
+	private Optional<Key<User>> getTokenUser(String token) {
+		String[] parts = token.split("\\.");
+		if (parts.length != 4)
+			return Optional.absent();
+		try {
+			String payload = parts[0] + "." + parts[1] + "." + parts[2];
+			if (!MessageDigest.isEqual(sign(payload).getBytes(StandardCharsets.US_ASCII), parts[3].getBytes(StandardCharsets.US_ASCII)))
+				return Optional.absent();
+			if (Long.parseLong(parts[1], Character.MAX_RADIX) < System.currentTimeMillis())
+				return Optional.absent();
+			if (revoked.getUnchecked(parts[2]).booleanValue())
+				return Optional.absent();
+			return Optional.of(Key.<User>create(parts[0]));
+		} catch (IllegalArgumentException e) {
+			log.warning("Invalid session token: " + e.getMessage());
+			return Optional.absent();
+		}
+	}
+	
+	private String sign(String payload) {
+		try {
+			Mac mac = Mac.getInstance(HMAC);
+			mac.init(getSecret());
+			return BASE64.encode(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/*
+	 * The secret is created by the first instance which needs it
+	 */
+	private SecretKeySpec getSecret() {
+		SecretKeySpec key = this.secret;
+		if (key != null)
+			return key;
+		final byte[] created = new byte[SECRET_BYTES];
+		random.nextBytes(created);
+		SessionSecret stored = ofy().transactionless().transact(new Work<SessionSecret>() {
+			@Override
+			public SessionSecret run() {
+				SessionSecret existing = ofy().load().key(SessionSecret.key()).now();
+				if (existing != null)
+					return existing;
+				SessionSecret secret = new SessionSecret(created);
+				ofy().save().entity(secret);
+				return secret;
+			}
+		});
+		key = new SecretKeySpec(stored.getSecret(), HMAC);
+		this.secret = key;
+		return key;
+	}
+	
+	private Set<String> getPreviouslyRevoked() {
+		Set<String> previous = this.previouslyRevoked;
+		if (previous == null) {
+			RevokedSessions sessions = ofy().transactionless().load().key(RevokedSessions.key()).now();
+			previous = sessions != null ? new HashSet<>(sessions.getTokenIds()) : new HashSet<String>();
+			this.previouslyRevoked = previous;
+		}
+		return previous;
+	}
+	
+	/*
+	 * A single put, the entity group of the token is only written by its logouts
+	 */
+	private void revoke(String tokenId, long expiration) {
+		ofy().transactionless().save().entity(new RevokedSession(tokenId, expiration)).now();
+		// seen at once by this instance
+		revoked.put(tokenId, Boolean.TRUE);
+	}
+}
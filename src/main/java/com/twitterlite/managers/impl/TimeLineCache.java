@@ -0,0 +1,163 @@
+package com.twitterlite.managers.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.inject.Singleton;
+import com.googlecode.objectify.Key;
+import com.twitterlite.config.CONSTANTS;
+import com.twitterlite.models.message.Message;
+import com.twitterlite.models.user.User;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * The first page of the timelines in memcache: the keys and creations of the
+ * CONSTANTS.TIMELINE_CACHE.PAGE_SIZE most recent messages, the messages themselves being read from the entity cache.
+ *
+ * The page is deleted when a fan-out, a follow or an unfollow changes the timeline.
+ * The delete holds the key for NO_READD_MILLIS and the pages are only added, so that a page
+ * built before the change is not stored after it. The messages of the fan-out on read users
+ * are not pushed, they show up when the page expires.
+ *
+ * Only one request rebuilds a missing page, the others wait for it a little
+ * then read the timeline without caching it.
+ */
+@Singleton
+public class TimeLineCache {
+
+	public static class TimeLinePage implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private ArrayList<Key<Message>> messages;
+		private ArrayList<Long> creations;
+
+		TimeLinePage(List<TimeLineMerger.Entry> entries) {
+			this.messages = new ArrayList<>(entries.size());
+			this.creations = new ArrayList<>(entries.size());
+			for (TimeLineMerger.Entry entry : entries) {
+				this.messages.add(entry.getMessage());
+				this.creations.add(Long.valueOf(entry.getCreation()));
+			}
+		}
+
+		List<TimeLineMerger.Entry> getEntries(int limit) {
+			int size = Math.min(limit, messages.size());
+			List<TimeLineMerger.Entry> entries = new ArrayList<>(size);
+			for (int i = 0; i < size; i++)
+				entries.add(new TimeLineMerger.Entry(messages.get(i), creations.get(i).longValue()));
+			return entries;
+		}
+	}
+
+	public static class TimeLineCacheStats {
+		public long hits;
+		public long misses;
+		public long rebuilds;
+		public long lockWaits;
+		public double hitRate;
+
+		public TimeLineCacheStats() {}
+	}
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong rebuilds = new AtomicLong();
+	// misses served by the page rebuilt by another request
+	private final AtomicLong lockWaits = new AtomicLong();
+
+	private static String pageKey(Key<User> user) {
+		return CONSTANTS.MEMCACHE.TIMELINE_PAGE_KEY + user.getString();
+	}
+
+	private static String lockKey(Key<User> user) {
+		return CONSTANTS.MEMCACHE.TIMELINE_LOCK_KEY + user.getString();
+	}
+
+	/*
+	 * Returns null if the page is missing
+	 */
+	public @CheckForNull TimeLinePage get(Key<User> user) {
+		checkNotNull(user);
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		TimeLinePage page = (TimeLinePage)mem.get(pageKey(user));
+		if (page != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return page;
+	}
+
+	/*
+	 * Returns true if the caller has to rebuild the page, then call put.
+	 * Returns false if another request is rebuilding it, see await.
+	 */
+	public boolean lock(Key<User> user) {
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		if (mem.put(lockKey(user), Boolean.TRUE, Expiration.byDeltaMillis((int)CONSTANTS.TIMELINE_CACHE.LOCK_MILLIS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+			rebuilds.incrementAndGet();
+			return true;
+		}
+		lockWaits.incrementAndGet();
+		return false;
+	}
+
+	/*
+	 * Polls the page rebuilt by another request, returns null if it is not there in time
+	 */
+	public @CheckForNull TimeLinePage await(Key<User> user) {
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		long deadline = System.currentTimeMillis() + CONSTANTS.TIMELINE_CACHE.LOCK_WAIT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(CONSTANTS.TIMELINE_CACHE.LOCK_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			TimeLinePage page = (TimeLinePage)mem.get(pageKey(user));
+			if (page != null)
+				return page;
+		}
+		return null;
+	}
+
+	public void put(Key<User> user, TimeLinePage page) {
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		// refused while the key is held by an invalidation
+		mem.put(pageKey(user), page, Expiration.byDeltaSeconds(CONSTANTS.TIMELINE_CACHE.EXPIRATION_SEC), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		mem.delete(lockKey(user));
+	}
+
+	/*
+	 * Static to be called from the fan-out tasks
+	 */
+	public static void invalidate(Iterable<Key<User>> users) {
+		List<String> keys = new ArrayList<>();
+		for (Key<User> user : users)
+			keys.add(pageKey(user));
+		if (keys.size() == 0)
+			return;
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		mem.deleteAll(keys, CONSTANTS.TIMELINE_CACHE.NO_READD_MILLIS);
+	}
+
+	public TimeLineCacheStats getStats() {
+		TimeLineCacheStats dto = new TimeLineCacheStats();
+		dto.hits = hits.get();
+		dto.misses = misses.get();
+		dto.rebuilds = rebuilds.get();
+		dto.lockWaits = lockWaits.get();
+		long total = dto.hits + dto.misses;
+		dto.hitRate = total == 0 ? 1.0 : dto.hits / (double)total;
+		return dto;
+	}
+}
@@ -0,0 +1,157 @@
+package com.twitterlite.managers.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.annotation.CheckForNull;
+
+import com.googlecode.objectify.Key;
+import com.twitterlite.models.message.Message;
+import com.twitterlite.util.TimeCursor;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * Assembles a timeline page from several sources (the materialized timeline, the receivers index,
+ * the messages of the fan-out on read senders...) with a k-way merge.
+ * 
+ * The sources are sorted on the creation then the id of the messages, most recent first,
+ * so that a page can be followed by the next one with a TimeCursor.
+ * A message found in several sources is only returned once.
+ */
+class TimeLineMerger {
+
+	static class Entry {
+		private final Key<Message> message;
+		private final long creation;
+		@CheckForNull
+		private final Message loaded;
+		
+		Entry(Key<Message> message, long creation) {
+			checkNotNull(message);
+			this.message = message;
+			this.creation = creation;
+			this.loaded = null;
+		}
+		
+		Entry(Message loaded) {
+			checkNotNull(loaded);
+			this.message = loaded.getKey();
+			this.creation = loaded.getCreation();
+			this.loaded = loaded;
+		}
+		
+		Key<Message> getMessage() {
+			return message;
+		}
+		long getCreation() {
+			return creation;
+		}
+		@CheckForNull
+		Message getLoaded() {
+			return loaded;
+		}
+		TimeCursor getCursor() {
+			return new TimeCursor(creation, message.getId());
+		}
+	}
+	
+	static final Comparator<Entry> MOST_RECENT_FIRST = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			int c = Long.compare(e2.creation, e1.creation);
+			if (c != 0)
+				return c;
+			return Long.compare(e2.message.getId(), e1.message.getId());
+		}
+	};
+	
+	// the head of a source in the heap
+	private static class Head {
+		private final List<Entry> source;
+		private int index;
+		Head(List<Entry> source) {
+			this.source = source;
+		}
+		Entry current() {
+			return source.get(index);
+		}
+	}
+	
+	private final TimeCursor cursor;
+	private final List<List<Entry>> sources = new ArrayList<>();
+	
+	TimeLineMerger(TimeCursor cursor) {
+		checkNotNull(cursor);
+		this.cursor = cursor;
+	}
+	
+	/*
+	 * The entries which are not after the cursor are ignored
+	 */
+	TimeLineMerger add(List<Entry> source) {
+		List<Entry> kept = new ArrayList<>(source.size());
+		for (Entry entry : source)
+			if (cursor.isBefore(entry.creation, entry.message.getId()))
+				kept.add(entry);
+		if (kept.size() > 0) {
+			// the queries only order on the creation
+			Collections.sort(kept, MOST_RECENT_FIRST);
+			sources.add(kept);
+		}
+		return this;
+	}
+	
+	/*
+	 * The first entries of the merged sources, without duplicates
+	 */
+	List<Entry> merge(int limit) {
+		List<Entry> page = new ArrayList<>(limit);
+		if (sources.size() == 0 || limit <= 0)
+			return page;
+		if (sources.size() == 1) {
+			addDistinct(page, sources.get(0), limit);
+			return page;
+		}
+		
+		PriorityQueue<Head> heap = new PriorityQueue<>(sources.size(), new Comparator<Head>() {
+			@Override
+			public int compare(Head h1, Head h2) {
+				return MOST_RECENT_FIRST.compare(h1.current(), h2.current());
+			}
+		});
+		for (List<Entry> source : sources)
+			heap.add(new Head(source));
+		
+		Entry last = null;
+		while (page.size() < limit && !heap.isEmpty()) {
+			Head head = heap.poll();
+			Entry entry = head.current();
+			// the copies of a message are next to each other in the merge
+			if (last == null || !last.message.equals(entry.message)) {
+				page.add(entry);
+				last = entry;
+			} else if (last.loaded == null && entry.loaded != null) {
+				page.set(page.size() - 1, entry);
+				last = entry;
+			}
+			head.index++;
+			if (head.index < head.source.size())
+				heap.add(head);
+		}
+		return page;
+	}
+	
+	private static void addDistinct(List<Entry> page, List<Entry> source, int limit) {
+		Entry last = null;
+		for (int i = 0; i < source.size() && page.size() < limit; i++) {
+			Entry entry = source.get(i);
+			if (last == null || !last.message.equals(entry.message))
+				page.add(entry);
+			last = entry;
+		}
+	}
+}
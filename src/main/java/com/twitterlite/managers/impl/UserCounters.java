@@ -0,0 +1,248 @@
+package com.twitterlite.managers.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.CheckForNull;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.common.util.concurrent.Futures;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.util.ResultCache;
+import com.twitterlite.config.CONSTANTS;
+import com.twitterlite.models.user.User;
+import com.twitterlite.models.user.UserCounterShard;
+import com.twitterlite.models.user.UserCounterShard.Counter;
+import com.twitterlite.models.user.UserCounterShard.Counts;
+
+import static com.google.common.base.Preconditions.*;
+
+import static com.googlecode.objectify.ObjectifyService.*;
+
+/*
+ * The follower, followed and message counts of the users.
+ *
+ * The increments are buffered in memcache, the added and the removed counts in two counters
+ * as memcache does not go below zero. The first increment of a period schedules a task on the backend
+ * which writes the buffered deltas to a random shard of the user at the end of the period.
+ * An increment which memcache refuses is written to a shard directly.
+ *
+ * The counts are the sums of the shards, cached in memcache, plus the buffered deltas.
+ * They are approximate: an evicted delta is lost, and an increment made in a transaction which is retried
+ * is counted again. The users can be recounted by UserManager.recountUsers.
+ */
+public class UserCounters {
+
+	private UserCounters() {}
+
+	private static String deltaKey(Key<User> user, Counter counter, boolean added) {
+		return CONSTANTS.MEMCACHE.COUNTER_DELTA_KEY + (added ? "+" : "-") + counter.name() + ":" + user.getString();
+	}
+
+	private static String totalKey(Key<User> user) {
+		return CONSTANTS.MEMCACHE.COUNTER_TOTAL_KEY + user.getString();
+	}
+
+	private static String flushKey(Key<User> user, long period) {
+		return CONSTANTS.MEMCACHE.COUNTER_FLUSH_KEY + period + ":" + user.getString();
+	}
+
+	private static List<String> deltaKeys(Key<User> user) {
+		List<String> keys = new ArrayList<>();
+		for (Counter counter : Counter.values()) {
+			keys.add(deltaKey(user, counter, true));
+			keys.add(deltaKey(user, counter, false));
+		}
+		return keys;
+	}
+
+	private static long value(@CheckForNull Object buffered) {
+		return buffered != null ? ((Number)buffered).longValue() : 0;
+	}
+
+	/*
+	 * Static to be called from the tasks. Not in a transaction: the flush task is a named task,
+	 * and a retried transaction would count the increment again.
+	 */
+	public static void increment(Key<User> user, Counter counter, long delta) {
+		checkNotNull(user);
+		checkState(ofy().getTxn() == null, "The counters are incremented once the transaction is committed");
+		if (delta == 0)
+			return;
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		Long buffered = mem.increment(deltaKey(user, counter, delta > 0), Math.abs(delta), Long.valueOf(0L));
+		if (buffered == null) {
+			Counts deltas = new Counts();
+			deltas.add(counter, delta);
+			addToShard(user, deltas);
+			mem.deleteAll(Collections.singletonList(totalKey(user)), CONSTANTS.COUNTERS.NO_READD_MILLIS);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long period = now / CONSTANTS.COUNTERS.FLUSH_MILLIS;
+		// only the first increment of the period enqueues the flush, the task name covers an evicted flag
+		if (mem.put(flushKey(user, period), Boolean.TRUE, Expiration.byDeltaMillis((int)(2 * CONSTANTS.COUNTERS.FLUSH_MILLIS)), SetPolicy.ADD_ONLY_IF_NOT_PRESENT))
+			MessageManagerImpl.enqueueOnBackend(new FlushCountersTask(user),
+												FlushCountersTask.name(user, period),
+												(period + 1) * CONSTANTS.COUNTERS.FLUSH_MILLIS - now);
+	}
+
+	/*
+	 * In its own transaction, whether or not the caller is in one
+	 */
+	private static void addToShard(final Key<User> user, final Counts deltas) {
+		final int shardId = ThreadLocalRandom.current().nextInt(CONSTANTS.COUNTERS.SHARDS);
+		ofy().transactNew(new VoidWork() {
+			@Override
+			public void vrun() {
+				UserCounterShard shard = ofy().load().key(UserCounterShard.key(user, shardId)).now();
+				if (shard == null)
+					shard = new UserCounterShard(user, shardId);
+				shard.add(deltas);
+				ofy().save().entity(shard);
+			}
+		});
+	}
+
+	/*
+	 * The buffered deltas are taken away from memcache once they are written,
+	 * the increments made in the meantime are left for the next flush.
+	 * The cached sum is deleted last and held for NO_READD_MILLIS, so that a sum read before the write is not stored.
+	 */
+	static void flush(Key<User> user) {
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		Map<String, Object> buffered = mem.getAll(deltaKeys(user));
+		Counts deltas = new Counts();
+		Map<String, Long> taken = new LinkedHashMap<>();
+		for (Counter counter : Counter.values()) {
+			long added = value(buffered.get(deltaKey(user, counter, true)));
+			long removed = value(buffered.get(deltaKey(user, counter, false)));
+			deltas.add(counter, added - removed);
+			if (added > 0)
+				taken.put(deltaKey(user, counter, true), Long.valueOf(-added));
+			if (removed > 0)
+				taken.put(deltaKey(user, counter, false), Long.valueOf(-removed));
+		}
+		if (taken.size() == 0)
+			return;
+		if (!deltas.isZero())
+			addToShard(user, deltas);
+		mem.incrementAll(taken);
+		mem.deleteAll(Collections.singletonList(totalKey(user)), CONSTANTS.COUNTERS.NO_READD_MILLIS);
+	}
+
+	/*
+	 * Replaces the counts of the user, the buffered deltas are dropped
+	 */
+	static void reset(final Key<User> user, final Counts counts) {
+		ofy().transactNew(new VoidWork() {
+			@Override
+			public void vrun() {
+				UserCounterShard shard = new UserCounterShard(user, 0);
+				shard.set(counts);
+				ofy().save().entity(shard);
+			}
+		});
+		// each shard is in its own entity group
+		ofy().delete().keys(UserCounterShard.keys(user, CONSTANTS.COUNTERS.SHARDS).subList(1, CONSTANTS.COUNTERS.SHARDS)).now();
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		mem.deleteAll(deltaKeys(user));
+		mem.deleteAll(Collections.singletonList(totalKey(user)), CONSTANTS.COUNTERS.NO_READD_MILLIS);
+	}
+
+	static void delete(Key<User> user) {
+		ofy().delete().keys(UserCounterShard.keys(user, CONSTANTS.COUNTERS.SHARDS));
+		MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+		mem.deleteAll(deltaKeys(user));
+		mem.delete(totalKey(user));
+	}
+
+	/*
+	 * The sums and the deltas are read from memcache in the background, the shards of the users
+	 * whose sum is not cached are loaded in one batch when the result is asked for
+	 */
+	public static Result<Map<Key<User>, Counts>> getAsync(final Collection<Key<User>> users) {
+		List<String> keys = new ArrayList<>();
+		for (Key<User> user : users) {
+			keys.add(totalKey(user));
+			keys.addAll(deltaKeys(user));
+		}
+		final Future<Map<String, Object>> read = MemcacheServiceFactory.getAsyncMemcacheService().getAll(keys);
+		return new ResultCache<Map<Key<User>, Counts>>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected Map<Key<User>, Counts> nowUncached() {
+				Map<String, Object> cached = Futures.getUnchecked(read);
+				List<Key<UserCounterShard>> missing = new ArrayList<>();
+				for (Key<User> user : users)
+					if (cached.get(totalKey(user)) == null)
+						missing.addAll(UserCounterShard.keys(user, CONSTANTS.COUNTERS.SHARDS));
+				Map<String, Counts> totals = new LinkedHashMap<>();
+				if (missing.size() > 0) {
+					Map<Key<UserCounterShard>, UserCounterShard> shards = ofy().load().keys(missing);
+					for (Key<User> user : users) {
+						if (cached.get(totalKey(user)) != null)
+							continue;
+						Counts total = new Counts();
+						for (Key<UserCounterShard> key : UserCounterShard.keys(user, CONSTANTS.COUNTERS.SHARDS)) {
+							UserCounterShard shard = shards.get(key);
+							if (shard != null)
+								total.add(shard.getCounts());
+						}
+						totals.put(totalKey(user), total);
+					}
+					// refused while the key is held by a flush
+					MemcacheServiceFactory.getMemcacheService().putAll(totals,
+																		Expiration.byDeltaSeconds(CONSTANTS.COUNTERS.TOTAL_EXPIRATION_SEC),
+																		SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+				}
+
+				Map<Key<User>, Counts> result = new LinkedHashMap<>();
+				for (Key<User> user : users) {
+					Counts counts = new Counts();
+					Counts total = (Counts)cached.get(totalKey(user));
+					counts.add(total != null ? total : totals.get(totalKey(user)));
+					for (Counter counter : Counter.values())
+						counts.add(counter, value(cached.get(deltaKey(user, counter, true))) - value(cached.get(deltaKey(user, counter, false))));
+					result.put(user, counts);
+				}
+				return result;
+			}
+		};
+	}
+
+	/*
+	 * Scheduled by the first increment of a period
+	 */
+	public static class FlushCountersTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+
+		private Key<User> user;
+
+		public FlushCountersTask(Key<User> user) {
+			checkNotNull(user);
+			this.user = user;
+		}
+
+		public static String name(Key<User> user, long period) {
+			return "counters-" + user.getId() + "-" + period;
+		}
+
+		@Override
+		public void run() {
+			flush(user);
+		}
+	}
+}
@@ -1,26 +1,53 @@
 package com.twitterlite.managers.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
 import javax.annotation.CheckForNull;
 
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.QueryResultIterable;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.assistedinject.Assisted;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
 import com.googlecode.objectify.TxnType;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
-import com.googlecode.objectify.cmd.QueryKeys;
-import com.googlecode.objectify.util.TranslatingQueryResultIterator;
+import com.googlecode.objectify.util.ResultCache;
+import com.googlecode.objectify.util.ResultNow;
+import com.twitterlite.config.CONSTANTS;
 import com.twitterlite.managers.ListChunk;
 import com.twitterlite.managers.MessageManager;
 import com.twitterlite.managers.UserManager;
+import com.twitterlite.managers.impl.FollowGraph.UpdateFollowGraphTask;
 import com.twitterlite.managers.interceptors.TransactInterceptor.Transact;
+import com.twitterlite.models.message.Message;
 import com.twitterlite.models.user.User;
+import com.twitterlite.models.user.User.UserGetDTO;
+import com.twitterlite.models.user.UserCounterShard.Counter;
+import com.twitterlite.models.user.UserCounterShard.Counts;
+import com.twitterlite.models.user.UserFollowedFilter;
 import com.twitterlite.models.user.UserFollowedIndex;
 import com.twitterlite.models.user.UserFollowersIndex;
+import com.twitterlite.models.user.UserFollowersShard;
+import com.twitterlite.models.user.UserTimeLine;
+import com.twitterlite.models.user.UserUniqueValue;
 import com.twitterlite.util.CursorUtil;
 
 import static com.google.common.base.Preconditions.*;
@@ -32,12 +59,16 @@ public class UserManagerImpl implements UserManager {
 	
 	private ManagedUserFactory userFactory;
 	private MessageManager msgManager;
+	private EntityCache entityCache;
+	private volatile boolean uniqueValuesMigrated = false;
 	
 	@Inject
 	protected UserManagerImpl(ManagedUserFactory userFactory,
-							  MessageManager msgManager) {
+							  MessageManager msgManager,
+							  EntityCache entityCache) {
 		this.userFactory = userFactory;
 		this.msgManager = msgManager;
+		this.entityCache = entityCache;
 	}
 	
 	// Assisted Injection
@@ -45,33 +76,130 @@ public class UserManagerImpl implements UserManager {
 		public abstract ManagedUserImpl create(User user);
 	}
 	
-	public static void checkThatLoginAndEmailNotUsed(String login, String email, @CheckForNull String userKey) {
-		// check that login, or email already used in DB
-		// Only Ancestor queries are allowed inside transactions
+	/*
+	 * Reserves the login and email for the user in the current transaction, and releases the previous ones.
+	 * With the user this is at most 5 entity groups.
+	 */
+	static void claimLoginAndEmail(Key<User> user, String login, String email, @CheckForNull String previousLogin, @CheckForNull String previousEmail) {
+		Key<UserUniqueValue> loginKey = UserUniqueValue.loginKey(login);
+		Key<UserUniqueValue> emailKey = UserUniqueValue.emailKey(email);
+		Map<Key<UserUniqueValue>, UserUniqueValue> found = ofy().load().keys(Arrays.asList(loginKey, emailKey));
 		
-		Key<User> foundLoginKey = ofy().transactionless().load().type(User.class).filter("login", login).keys().first().now();
-		Key<User> foundEmailKey = ofy().transactionless().load().type(User.class).filter("email", email).keys().first().now();
-
-		if (userKey != null) {
-			if (!foundLoginKey.equals(userKey))
-				throw new IllegalArgumentException("login already exists in the database");
-			if (!foundEmailKey.equals(userKey))
-				throw new IllegalArgumentException("email already exists in the database");
-		} else {
-			if (foundLoginKey != null)
-				throw new IllegalArgumentException("login already exists in the database");
-			if (foundEmailKey != null)
-				throw new IllegalArgumentException("email already exists in the database");
-		}
+		UserUniqueValue foundLogin = found.get(loginKey);
+		if (foundLogin != null && !foundLogin.getUser().equals(user))
+			throw new IllegalArgumentException("login already exists in the database");
+		UserUniqueValue foundEmail = found.get(emailKey);
+		if (foundEmail != null && !foundEmail.getUser().equals(user))
+			throw new IllegalArgumentException("email already exists in the database");
+		ofy().save().entities(new UserUniqueValue(loginKey, user), new UserUniqueValue(emailKey, user));
+		
+		List<Key<UserUniqueValue>> released = new ArrayList<>(2);
+		if (previousLogin != null && !UserUniqueValue.loginKey(previousLogin).equals(loginKey))
+			released.add(UserUniqueValue.loginKey(previousLogin));
+		if (previousEmail != null && !UserUniqueValue.emailKey(previousEmail).equals(emailKey))
+			released.add(UserUniqueValue.emailKey(previousEmail));
+		ofy().delete().keys(released);
 	}
 
+	/*
+	 * The follow indexes are read by key so that they can be served by the entity cache.
+	 * The indexes created before they had a well-known id are moved to it when they are first read.
+	 */
+	static UserFollowedIndex getFollowedIndex(final Key<User> user, @CheckForNull UserFollowedIndex loaded) {
+		if (loaded != null)
+			return loaded;
+		return ofy().transact(new Work<UserFollowedIndex>() {
+			@Override
+			public UserFollowedIndex run() {
+				UserFollowedIndex index = ofy().load().key(UserFollowedIndex.key(user)).now();
+				if (index != null)
+					return index;
+				index = ofy().load().type(UserFollowedIndex.class).ancestor(user).first().now();
+				if (index == null)
+					index = new UserFollowedIndex(user);
+				else
+					ofy().delete().key(index.moveToWellKnownId());
+				ofy().save().entity(index);
+				return index;
+			}
+		});
+	}
+	
+	static UserFollowersIndex getFollowersIndex(final Key<User> user, @CheckForNull UserFollowersIndex loaded) {
+		if (loaded != null)
+			return loaded;
+		return ofy().transact(new Work<UserFollowersIndex>() {
+			@Override
+			public UserFollowersIndex run() {
+				UserFollowersIndex index = ofy().load().key(UserFollowersIndex.key(user)).now();
+				if (index != null)
+					return index;
+				index = ofy().load().type(UserFollowersIndex.class).ancestor(user).first().now();
+				if (index == null)
+					index = new UserFollowersIndex(user);
+				else
+					ofy().delete().key(index.moveToWellKnownId());
+				ofy().save().entity(index);
+				return index;
+			}
+		});
+	}
+	
+	/*
+	 * The followed filter answers most of the checks without reading the followed index,
+	 * which is only read when one of the users might be followed
+	 */
+	@Override
+	public void updateUsersMetadata(Iterable<UserGetDTO> dtos, Key<User> currentUser) {
+		Predicate<Key<User>> following = getFollowingAsync(currentUser).now();
+		for (UserGetDTO dto : dtos)
+			dto.isFollowedByCurrentUser = Boolean.valueOf(dto.userKey != null && following.apply(Key.<User>create(dto.userKey)));
+	}
+	
 	@Override
 	public Boolean isUserFollowing(Key<User> followedKey, Key<User> followerKey) {
-		UserFollowedIndex index = ofy().load().type(UserFollowedIndex.class).ancestor(followerKey).filter("followed", followedKey).first().now();
-		if (index != null)
-			return Boolean.TRUE;
-		else
-			return Boolean.FALSE;
+		return isUserFollowingAsync(followedKey, followerKey).now();
+	}
+	
+	@Override
+	public Result<Boolean> isUserFollowingAsync(final Key<User> followedKey, Key<User> followerKey) {
+		final Result<Predicate<Key<User>>> following = getFollowingAsync(followerKey);
+		return new ResultCache<Boolean>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected Boolean nowUncached() {
+				return Boolean.valueOf(following.now().apply(followedKey));
+			}
+		};
+	}
+	
+	/*
+	 * The filter and the followed index are read together so that the result does not wait for a second read,
+	 * the index is only decoded for the users the filter cannot answer for
+	 */
+	@Override
+	public Result<Predicate<Key<User>>> getFollowingAsync(final Key<User> followerKey) {
+		final Result<Map<Key<UserFollowedFilter>, UserFollowedFilter>> filters = entityCache.getAsync(Collections.singletonList(UserFollowedFilter.key(followerKey)));
+		final Map<Key<UserFollowedIndex>, UserFollowedIndex> indexes = ofy().load().keys(Collections.singletonList(UserFollowedIndex.key(followerKey)));
+		return new ResultCache<Predicate<Key<User>>>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected Predicate<Key<User>> nowUncached() {
+				final UserFollowedFilter filter = filters.now().get(UserFollowedFilter.key(followerKey));
+				return new Predicate<Key<User>>() {
+					@CheckForNull
+					private UserFollowedIndex index;
+					@Override
+					public boolean apply(Key<User> followedKey) {
+						if (filter != null && !filter.mightFollow(followedKey))
+							return false;
+						if (index == null)
+							index = getFollowedIndex(followerKey, indexes.get(UserFollowedIndex.key(followerKey)));
+						return index.isFollowing(followedKey);
+					}
+				};
+			}
+		};
 	}
 	
 	@Override
@@ -85,48 +213,130 @@ public class UserManagerImpl implements UserManager {
 	@Transact(TxnType.REQUIRED)
 	public ManagedUser create(final String login, final String email) throws IllegalArgumentException {
 
-		checkThatLoginAndEmailNotUsed(login, email, null);
-
 		User user = new User(login, email);
 		Key<User> usrKey = ofy().save().entity(user).now();
-		ofy().save().entities(new UserFollowedIndex(usrKey), new UserFollowersIndex(usrKey));
+		// rolls back the user if the login or email is taken
+		claimLoginAndEmail(usrKey, login, email, null, null);
+		UserFollowedIndex followedIndex = new UserFollowedIndex(usrKey);
+		ofy().save().entities(followedIndex, new UserFollowedFilter(followedIndex), new UserFollowersIndex(usrKey), new UserTimeLine(usrKey, false));
 
 		return userFactory.create(user);
 	}
 
+	/*
+	 * The update and delete are not @Transact: the entity cache is invalidated
+	 * once the transaction is committed, otherwise another request could cache the old user again
+	 */
 	public static class ManagedUserImpl implements ManagedUser {
 		private User user;
+		private EntityCache entityCache;
+		// the login and email reserved by the user, to release them when they change
+		private String savedLogin;
+		private String savedEmail;
 		
 		@Inject
-		public ManagedUserImpl(@Assisted User user) {
+		public ManagedUserImpl(@Assisted User user, EntityCache entityCache) {
 			this.user = user;
+			this.entityCache = entityCache;
+			this.savedLogin = user.getLogin();
+			this.savedEmail = user.getEmail();
 		}
 		@Override
 		public User read() {
 			return this.user;
 		}
 		@Override
-		@Transact(TxnType.REQUIRED)
-		public void update() {
-			ofy().save().entities(this.user);
+		public void update() throws IllegalArgumentException {
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					if (!UserUniqueValue.loginKey(user.getLogin()).equals(UserUniqueValue.loginKey(savedLogin))
+						|| !UserUniqueValue.emailKey(user.getEmail()).equals(UserUniqueValue.emailKey(savedEmail)))
+						claimLoginAndEmail(user.getKey(), user.getLogin(), user.getEmail(), savedLogin, savedEmail);
+					ofy().save().entities(user);
+				}
+			});
+			this.savedLogin = this.user.getLogin();
+			this.savedEmail = this.user.getEmail();
+			entityCache.invalidate(this.user.getKey());
+		}
+		/*
+		 * Out of a transaction the put of the user alone needs none. In a @Transact method
+		 * it is part of the transaction of the method, the entity cache is then invalidated before the commit
+		 * as for update.
+		 */
+		@Override
+		public Result<Void> updateAsync() throws IllegalArgumentException {
+			if (!UserUniqueValue.loginKey(user.getLogin()).equals(UserUniqueValue.loginKey(savedLogin))
+				|| !UserUniqueValue.emailKey(user.getEmail()).equals(UserUniqueValue.emailKey(savedEmail))) {
+				update();
+				return new ResultNow<Void>(null);
+			}
+			final Result<Key<User>> saved = ofy().save().entity(user);
+			return new ResultCache<Void>() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected Void nowUncached() {
+					saved.now();
+					entityCache.invalidate(user.getKey());
+					return null;
+				}
+			};
 		}
 		@Override
-		@Transact(TxnType.REQUIRED)
 		public void delete() {
-			ofy().delete().entities(this.user);
-			QueryKeys<UserFollowedIndex> followedIndexKeys = ofy().load().type(UserFollowedIndex.class).ancestor(user).keys();
-			QueryKeys<UserFollowersIndex> followersIndexKeys = ofy().load().type(UserFollowersIndex.class).ancestor(user).keys();
-			ofy().delete().keys(followedIndexKeys);
-			ofy().delete().keys(followersIndexKeys);
+			final Key<User> key = this.user.getKey();
+			UserFollowersIndex followersIndex = ofy().load().key(UserFollowersIndex.key(key)).now();
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					ofy().delete().entities(user);
+					ofy().delete().keys(UserFollowedIndex.key(key), UserFollowersIndex.key(key), UserTimeLine.previousKey(key), UserTimeLine.key(key));
+					ofy().delete().key(UserFollowedFilter.key(key));
+					ofy().delete().keys(UserUniqueValue.loginKey(savedLogin), UserUniqueValue.emailKey(savedEmail));
+				}
+			});
+			// each shard is in its own entity group
+			if (followersIndex != null)
+				ofy().delete().keys(UserFollowersShard.keys(key, followersIndex.getShardCount()));
+			UserCounters.delete(key);
+			entityCache.invalidate(key);
 		}
 	}
 	
 	@Override
 	public ManagedUser get(Key<User> key) throws NotFoundException {
-		User user = ofy().load().key(key).now();
+		ManagedUser user = getAsync(key).now();
 		if (user == null)
 			throw new NotFoundException("No such user: " + key.getString());
-		return userFactory.create(user);
+		return user;
+	}
+	
+	@Override
+	public Result<ManagedUser> getAsync(final Key<User> key) {
+		final Result<Map<Key<User>, ManagedUser>> users = getAll(Collections.singletonList(key));
+		return new ResultCache<ManagedUser>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected @CheckForNull ManagedUser nowUncached() {
+				return users.now().get(key);
+			}
+		};
+	}
+	
+	@Override
+	public Result<Map<Key<User>, ManagedUser>> getAll(Collection<Key<User>> keys) {
+		final Result<Map<Key<User>, User>> users = entityCache.getAsync(keys);
+		return new ResultCache<Map<Key<User>, ManagedUser>>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected Map<Key<User>, ManagedUser> nowUncached() {
+				Map<Key<User>, ManagedUser> managed = new LinkedHashMap<>();
+				for (Map.Entry<Key<User>, User> entry : users.now().entrySet())
+					managed.put(entry.getKey(), userFactory.create(entry.getValue()));
+				return managed;
+			}
+		};
 	}
 	
 	@Override
@@ -139,9 +349,23 @@ public class UserManagerImpl implements UserManager {
 	public ManagedUser get(String login, String email) throws NotFoundException {
 		checkNotNull(login);
 		checkNotNull(email);
-		User user = ofy().load().type(User.class).filter("login", login).filter("email", email).first().now();
+		Key<UserUniqueValue> loginKey = UserUniqueValue.loginKey(login);
+		// the marker is read with the login until it is found, then the flag is kept by the instance
+		List<Key<UserUniqueValue>> keys = uniqueValuesMigrated
+										  ? Collections.singletonList(loginKey)
+										  : Arrays.asList(loginKey, UserUniqueValue.migratedKey());
+		Map<Key<UserUniqueValue>, UserUniqueValue> values = ofy().load().keys(keys);
+		if (values.containsKey(UserUniqueValue.migratedKey()))
+			uniqueValuesMigrated = true;
+		UserUniqueValue reserved = values.get(loginKey);
+		User user = null;
+		if (reserved != null)
+			user = entityCache.get(reserved.getUser());
+		else if (!uniqueValuesMigrated)
+			// the users created before the reservations, until migrateUniqueValues has run
+			user = ofy().load().type(User.class).filter("login", login).first().now();
 		
-		if (user == null)
+		if (user == null || !UserUniqueValue.emailKey(user.getEmail()).equals(UserUniqueValue.emailKey(email)))
 			throw new NotFoundException("No such user: " + login + ", " + email);
 		
 		return userFactory.create(user);
@@ -157,17 +381,224 @@ public class UserManagerImpl implements UserManager {
 		followUser(follower, followed);
 	}
 	
+	/*
+	 * Not @Transact: the followed filter is read without transaction, its cached copies
+	 * are invalidated once the transaction is committed, otherwise an instance could keep one without the new user.
+	 * The follow graph of the backend reads the followers again once they are committed.
+	 * 
+	 * The follower is written in one shard of the followers of the followed user. The followers index,
+	 * which gives the number of shards and the fan-out mode, is read before the transaction: the follows
+	 * only write the entity groups of the follower and of one shard, not the one of the followed user.
+	 * A follower written in his shard for a previous number of shards is still found, see getShardsOf,
+	 * and the fan-out mode is checked on the shard, which SetFanOutOnReadTask flags before the index.
+	 * The shards are doubled when the follow had to retry because of a concurrent write of its shard.
+	 * A shard is split on the backend once it reaches SPLIT_SIZE, see SplitFollowersShardTask. No follower is added
+	 * to a full shard: the follow splits it first, so that it stays under the indexed values limit of the entities.
+	 */
 	@Override
-	@Transact(TxnType.REQUIRED)
-	public void followUser(Key<User> follower, Key<User> followed) {
-		UserFollowedIndex followedIndex = ofy().load().type(UserFollowedIndex.class).ancestor(follower).first().now();
-		UserFollowersIndex followersIndex = ofy().load().type(UserFollowersIndex.class).ancestor(followed).first().now();
+	public void followUser(final Key<User> follower, final Key<User> followed) {
+		final UserFollowersIndex index = getFollowersIndex(followed, ofy().load().key(UserFollowersIndex.key(followed)).now());
+		final int shardId = index.shardFor(follower);
+		final Key<UserFollowersShard> shardKey = UserFollowersShard.key(followed, shardId);
+		final boolean[] fanOutOnRead = { index.isFanOutOnRead() };
+		// the size of the shard read by the last attempt, -1 if it did not exist
+		final int[] readSize = { -1 };
+		final int[] shardSize = { 0 };
+		final boolean[] shardContended = { false };
+		final int[] attempts = { 0 };
+		final boolean[] added = { false };
+		final boolean[] full = { false };
+		ofy().transact(new VoidWork() {
+			@Override
+			public void vrun() {
+				attempts[0]++;
+				added[0] = false;
+				full[0] = false;
+				Map<Key<Object>, Object> indexes = MessageManagerImpl.loadAll(Arrays.<Key<?>>asList(UserFollowedIndex.key(follower), 
+																									UserFollowedFilter.key(follower), 
+																									shardKey));
+				UserFollowedIndex followedIndex = getFollowedIndex(follower, (UserFollowedIndex)indexes.get(UserFollowedIndex.key(follower)));
+				UserFollowedFilter filter = (UserFollowedFilter)indexes.get(UserFollowedFilter.key(follower));
+				UserFollowersShard shard = (UserFollowersShard)indexes.get(shardKey);
+				int size = shard != null ? shard.getFollowerCount() : -1;
+				// the previous attempt failed on the shard if another follow or unfollow wrote it meanwhile
+				if (attempts[0] > 1 && size != readSize[0])
+					shardContended[0] = true;
+				readSize[0] = size;
+				// a follower is written in one shard only
+				if (followedIndex.isFollowing(followed))
+					return;
+				// SetFanOutOnReadTask creates the missing shards before it flags the index
+				if (shard == null)
+					shard = new UserFollowersShard(followed, shardId, index.isFanOutOnRead());
+				fanOutOnRead[0] = shard.isFanOutOnRead();
+				if (shard.getFollowerCount() >= CONSTANTS.FOLLOWERS.SHARD_CAPACITY) {
+					full[0] = true;
+					return;
+				}
+				
+				shard.addFollower(follower);
+				followedIndex.addFollowed(followed);
+				if (filter == null)
+					filter = new UserFollowedFilter(followedIndex);
+				else
+					filter.addFollowed(followed, followedIndex);
+				
+				ofy().save().entities(followedIndex, shard, filter);
+				shardSize[0] = shard.getFollowerCount();
+				added[0] = true;
+			}
+		});
+		entityCache.invalidate(UserFollowedFilter.key(follower));
+		if (shardContended[0])
+			doubleShards(followed, index.getShardCount());
+		if (full[0]) {
+			if (!splitShard(followed, shardId, CONSTANTS.FOLLOWERS.SHARD_CAPACITY))
+				throw new IllegalStateException("The followers shard " + shardId + " of " + followed + " is full and the shards cannot be doubled");
+			// in the shard of the follower for the new number of shards
+			followUser(follower, followed);
+			return;
+		}
+		if (!added[0])
+			return;
 		
-		followersIndex.getFollowers().add(follower);
-		followedIndex.getFollowed().add(followed);
+		// the tasks are not added with the transaction, a retried or failed one would enqueue them too
+		// the fan-out on read users are listed when the timeline is read
+		TimeLineCache.invalidate(Collections.singletonList(follower));
+		UserCounters.increment(followed, Counter.FOLLOWERS, 1);
+		UserCounters.increment(follower, Counter.FOLLOWED, 1);
+		// the messages of a fan-out on read user are read directly in the timeline,
+		// the receivers task reads the followers of the follow graph again
+		if (!fanOutOnRead[0])
+			msgManager.addUserMessagesReceiver(followed, follower);
+		else
+			MessageManagerImpl.enqueueOnBackend(new UpdateFollowGraphTask(followed));
 		
-		ofy().save().entities(followedIndex, followersIndex);
-		msgManager.addUserMessagesReceiver(followed, follower);
+		// by the follow which filled the shard, then again while it stays full
+		if (shardSize[0] >= CONSTANTS.FOLLOWERS.SPLIT_SIZE 
+			&& (shardSize[0] - CONSTANTS.FOLLOWERS.SPLIT_SIZE) % CONSTANTS.FOLLOWERS.SPLIT_STEP == 0)
+			MessageManagerImpl.enqueueOnBackend(new SplitFollowersShardTask(followed, shardId));
+		// the shards are filled evenly
+		if (!fanOutOnRead[0] 
+			&& index.getFollowerCount() + shardSize[0] * index.getShardCount() >= CONSTANTS.FAN_OUT.FOLLOWERS_THRESHOLD)
+			MessageManagerImpl.enqueueOnBackend(new SetFanOutOnReadTask(followed), SetFanOutOnReadTask.name(followed), 0);
+	}
+	
+	/*
+	 * Only the first of the concurrent callers which found the shards full or contended doubles them.
+	 * Returns false if the shards are still shardCount.
+	 */
+	private static boolean doubleShards(final Key<User> user, final int shardCount) {
+		return ofy().transact(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				UserFollowersIndex index = ofy().load().key(UserFollowersIndex.key(user)).now();
+				if (index == null)
+					return Boolean.FALSE;
+				if (index.getShardCount() == shardCount && index.doubleShards(CONSTANTS.FOLLOWERS.MAX_SHARDS))
+					ofy().save().entity(index);
+				return Boolean.valueOf(index.getShardCount() != shardCount);
+			}
+		}).booleanValue();
+	}
+	
+	/*
+	 * The followers by the shard they are written in for the current number of shards
+	 */
+	private static Map<Integer, List<Key<User>>> byShard(long[] followerIds, UserFollowersIndex index) {
+		Map<Integer, List<Key<User>>> followers = new LinkedHashMap<>();
+		for (long id : followerIds) {
+			Key<User> follower = Key.create(User.class, id);
+			Integer shard = Integer.valueOf(index.shardFor(follower));
+			List<Key<User>> ofShard = followers.get(shard);
+			if (ofShard == null)
+				followers.put(shard, ofShard = new ArrayList<>());
+			ofShard.add(follower);
+		}
+		return followers;
+	}
+	
+	/*
+	 * Splits a shard of the followers of a user which has at least minSize followers: its followers which are not
+	 * in their shard for the current number of shards are moved to it. If they all are, the shards are doubled first,
+	 * which leaves about half of them to move. The moved followers stay found by getShardsOf.
+	 * Returns false if the shard could not be split as the shards cannot be doubled any more.
+	 * 
+	 * The followers are moved in transactions on the source shard and at most XG_MAX_ENTITY_GROUPS - 1 targets,
+	 * so that the follows and unfollows made meanwhile are kept. The targets which do not exist yet take
+	 * the fan-out mode of the source, the shards which SetFanOutOnReadTask flagged exist.
+	 * A full target is not given more followers.
+	 */
+	private static boolean splitShard(final Key<User> user, final int shardId, int minSize) {
+		UserFollowersIndex index = ofy().load().key(UserFollowersIndex.key(user)).now();
+		UserFollowersShard shard = ofy().load().key(UserFollowersShard.key(user, shardId)).now();
+		if (index == null || shard == null || shard.getFollowerCount() < minSize)
+			return true;
+		Map<Integer, List<Key<User>>> moves = byShard(shard.getFollowerIds(), index);
+		moves.remove(Integer.valueOf(shardId));
+		if (moves.isEmpty()) {
+			if (!doubleShards(user, index.getShardCount()))
+				return false;
+			index = ofy().load().key(UserFollowersIndex.key(user)).now();
+			moves = byShard(shard.getFollowerIds(), index);
+			moves.remove(Integer.valueOf(shardId));
+		}
+		for (final List<Integer> targets : Lists.partition(new ArrayList<>(moves.keySet()), CONSTANTS.DATASTORE.XG_MAX_ENTITY_GROUPS - 1)) {
+			final Map<Integer, List<Key<User>>> moved = moves;
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					List<Key<UserFollowersShard>> keys = new ArrayList<>(targets.size() + 1);
+					keys.add(UserFollowersShard.key(user, shardId));
+					for (Integer target : targets)
+						keys.add(UserFollowersShard.key(user, target.intValue()));
+					Map<Key<UserFollowersShard>, UserFollowersShard> shards = ofy().load().keys(keys);
+					UserFollowersShard source = shards.get(keys.get(0));
+					if (source == null)
+						return;
+					List<UserFollowersShard> changed = new ArrayList<>(keys.size());
+					changed.add(source);
+					for (Integer target : targets) {
+						UserFollowersShard shard = shards.get(UserFollowersShard.key(user, target.intValue()));
+						if (shard == null)
+							shard = new UserFollowersShard(user, target.intValue(), source.isFanOutOnRead());
+						else if (source.isFanOutOnRead())
+							shard.setFanOutOnRead(true);
+						for (Key<User> follower : moved.get(target))
+							// unless unfollowed meanwhile
+							if (shard.getFollowerCount() < CONSTANTS.FOLLOWERS.SHARD_CAPACITY && source.removeFollower(follower))
+								shard.addFollower(follower);
+						changed.add(shard);
+					}
+					ofy().save().entities(changed);
+				}
+			});
+		}
+		return true;
+	}
+	
+	/*
+	 * Splits a shard which reached SPLIT_SIZE, before the follows find it full
+	 */
+	public static class SplitFollowersShardTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+		
+		private static final Logger log = Logger.getLogger(SplitFollowersShardTask.class.getSimpleName());
+		
+		private Key<User> user;
+		private int shardId;
+		
+		public SplitFollowersShardTask(Key<User> user, int shardId) {
+			checkNotNull(user);
+			this.user = user;
+			this.shardId = shardId;
+		}
+		
+		@Override
+		public void run() {
+			if (!splitShard(user, shardId, CONSTANTS.FOLLOWERS.SPLIT_SIZE))
+				log.warning("The followers shard " + shardId + " of " + user + " is full and the shards cannot be doubled");
+		}
 	}
 	
 	@Override
@@ -181,24 +612,441 @@ public class UserManagerImpl implements UserManager {
 	}
 	
 	@Override
-	@Transact(TxnType.REQUIRED)
-	public void unFollowUser(Key<User> follower, Key<User> followed) {
-		UserFollowedIndex followedIndex = ofy().load().type(UserFollowedIndex.class).ancestor(follower).first().now();
-		UserFollowersIndex followersIndex = ofy().load().type(UserFollowersIndex.class).ancestor(followed).first().now();
+	public void unFollowUser(final Key<User> follower, final Key<User> followed) {
+		// the entity the follower was written in is found out of the transaction, 
+		// and again if a split moved him meanwhile
+		final boolean[] removed = { false };
+		final boolean[] moved = { false };
+		do {
+			final Key<?> writtenIn = findFollower(getFollowersIndex(followed, ofy().load().key(UserFollowersIndex.key(followed)).now()), follower);
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					moved[0] = false;
+					List<Key<?>> keys = new ArrayList<>(Arrays.<Key<?>>asList(UserFollowedIndex.key(follower), UserFollowedFilter.key(follower)));
+					if (writtenIn != null)
+						keys.add(writtenIn);
+					Map<Key<Object>, Object> indexes = MessageManagerImpl.loadAll(keys);
+					UserFollowedIndex followedIndex = getFollowedIndex(follower, (UserFollowedIndex)indexes.get(UserFollowedIndex.key(follower)));
+					UserFollowedFilter filter = (UserFollowedFilter)indexes.get(UserFollowedFilter.key(follower));
+					Object followers = writtenIn != null ? indexes.get(writtenIn) : null;
+					
+					if (followers instanceof UserFollowersShard) {
+						if (!((UserFollowersShard)followers).removeFollower(follower) && followedIndex.isFollowing(followed)) {
+							moved[0] = true;
+							return;
+						}
+						ofy().save().entity(followers);
+					} else if (followers instanceof UserFollowersIndex) {
+						((UserFollowersIndex)followers).removeFollower(follower);
+						ofy().save().entity(followers);
+					}
+					removed[0] = followedIndex.removeFollowed(followed);
+					followedIndex.removeHorizon(followed);
+					if (filter == null)
+						filter = new UserFollowedFilter(followedIndex);
+					else
+						filter.removeFollowed(followedIndex);
+					
+					ofy().save().entities(followedIndex, filter);
+				}
+			});
+		} while (moved[0]);
+		entityCache.invalidate(UserFollowedFilter.key(follower));
+		// the receivers task reads the followers of the follow graph again
+		if (removed[0]) {
+			msgManager.removeUserMessagesReceiver(followed, follower);
+			TimeLineCache.invalidate(Collections.singletonList(follower));
+			UserCounters.increment(followed, Counter.FOLLOWERS, -1);
+			UserCounters.increment(follower, Counter.FOLLOWED, -1);
+		}
+	}
+	
+	/*
+	 * The followers index if the follower was written in it before it was sharded,
+	 * otherwise the shard he was written in, read with the other shards he may have been written in
+	 */
+	private static @CheckForNull Key<?> findFollower(UserFollowersIndex followersIndex, Key<User> follower) {
+		if (followersIndex.isFollower(follower))
+			return followersIndex.getKey();
+		List<Key<UserFollowersShard>> keys = new ArrayList<>();
+		for (Integer shard : followersIndex.getShardsOf(follower))
+			keys.add(UserFollowersShard.key(followersIndex.getUser(), shard.intValue()));
+		for (UserFollowersShard shard : ofy().load().keys(keys).values())
+			if (shard.isFollower(follower))
+				return shard.getKey();
+		return null;
+	}
+	
+	/*
+	 * The flag is set on the shards first then on the followers index, which decides how the messages of the user are sent:
+	 * until then they are both pushed and read. The shards added in the meantime are flagged before the index.
+	 */
+	public static class SetFanOutOnReadTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+		
+		private Key<User> user;
+		
+		public SetFanOutOnReadTask(Key<User> user) {
+			this.user = user;
+		}
+		
+		public static String name(Key<User> user) {
+			return "fanoutonread-" + user.getId();
+		}
+		
+		@Override
+		public void run() {
+			int flagged = 0;
+			while (true) {
+				UserFollowersIndex index = ofy().load().key(UserFollowersIndex.key(user)).now();
+				if (index == null || index.isFanOutOnRead())
+					return;
+				for (; flagged < index.getShardCount(); flagged++)
+					setShardFanOutOnRead(UserFollowersShard.key(user, flagged), flagged);
+				final int shardCount = flagged;
+				boolean done = ofy().transact(new Work<Boolean>() {
+					@Override
+					public Boolean run() {
+						UserFollowersIndex index = ofy().load().key(UserFollowersIndex.key(user)).now();
+						if (index == null)
+							return Boolean.TRUE;
+						if (index.getShardCount() > shardCount)
+							return Boolean.FALSE;
+						index.setFanOutOnRead(true);
+						ofy().save().entity(index);
+						return Boolean.TRUE;
+					}
+				}).booleanValue();
+				if (done)
+					return;
+			}
+		}
+		
+		private void setShardFanOutOnRead(final Key<UserFollowersShard> key, final int shardId) {
+			ofy().transact(new VoidWork() {
+				@Override
+				public void vrun() {
+					UserFollowersShard shard = ofy().load().key(key).now();
+					if (shard == null)
+						shard = new UserFollowersShard(user, shardId, true);
+					shard.setFanOutOnRead(true);
+					ofy().save().entity(shard);
+				}
+			});
+		}
+	}
+	
+	/*
+	 * The sorted ids of all the followers of the users: the followers written in their index
+	 * and those of all their shards, read in one batch
+	 */
+	static Map<Key<User>, long[]> getFollowerIds(Collection<UserFollowersIndex> followersIndexes) {
+		List<Key<UserFollowersShard>> keys = new ArrayList<>();
+		for (UserFollowersIndex index : followersIndexes)
+			keys.addAll(UserFollowersShard.keys(index.getUser(), index.getShardCount()));
+		Map<Key<UserFollowersShard>, UserFollowersShard> shards = ofy().load().keys(keys);
+		
+		Map<Key<User>, long[]> ids = new LinkedHashMap<>();
+		for (UserFollowersIndex index : followersIndexes) {
+			List<long[]> parts = new ArrayList<>(index.getShardCount() + 1);
+			parts.add(index.getFollowerIds());
+			for (int i = 0; i < index.getShardCount(); i++) {
+				UserFollowersShard shard = shards.get(UserFollowersShard.key(index.getUser(), i));
+				if (shard != null)
+					parts.add(shard.getFollowerIds());
+			}
+			ids.put(index.getUser(), union(parts));
+		}
+		return ids;
+	}
+	
+	static long[] getFollowerIds(Key<User> user) {
+		UserFollowersIndex index = ofy().load().key(UserFollowersIndex.key(user)).now();
+		if (index == null)
+			return new long[0];
+		return getFollowerIds(Collections.singletonList(index)).get(user);
+	}
+	
+	private static long[] union(List<long[]> parts) {
+		if (parts.size() == 1)
+			return parts.get(0);
+		int size = 0;
+		for (long[] part : parts)
+			size += part.length;
+		long[] all = new long[size];
+		int i = 0;
+		for (long[] part : parts) {
+			System.arraycopy(part, 0, all, i, part.length);
+			i += part.length;
+		}
+		Arrays.sort(all);
+		int distinct = 0;
+		for (int j = 0; j < all.length; j++)
+			if (distinct == 0 || all[j] != all[distinct - 1])
+				all[distinct++] = all[j];
+		return Arrays.copyOf(all, distinct);
+	}
+	
+	/*
+	 * Rebuilds the followed filters of all the users from their followed index
+	 */
+	public static class RebuildFollowedFiltersTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+		
+		private static final int LIMIT = 100;
+		
+		@CheckForNull
+		private Cursor currentCursor;
+		
+		public RebuildFollowedFiltersTask(@CheckForNull Cursor cursor) {
+			this.currentCursor = cursor;
+		}
+		
+		@Override
+		public void run() {
+			QueryResultIterator<Key<User>> it = ofy().load().type(User.class).startAt(currentCursor).limit(LIMIT).keys().iterator();
+			List<Key<User>> users = ListChunk.copyQueryResultIterator(it);
+			if (users.size() == 0)
+				return;
+			
+			MemcacheService mem = MemcacheServiceFactory.getMemcacheService();
+			List<String> versionKeys = new ArrayList<>(users.size());
+			for (final Key<User> user : users) {
+				ofy().transact(new VoidWork() {
+					@Override
+					public void vrun() {
+						UserFollowedIndex index = getFollowedIndex(user, ofy().load().key(UserFollowedIndex.key(user)).now());
+						ofy().save().entity(new UserFollowedFilter(index));
+					}
+				});
+				versionKeys.add(EntityCache.versionKey(UserFollowedFilter.key(user)));
+			}
+			// the task is not injected, the entity caches are invalidated through memcache
+			mem.incrementAll(versionKeys, 1L, Long.valueOf(0L));
+			
+			MessageManagerImpl.enqueueOnBackend(new RebuildFollowedFiltersTask(it.getCursor()));
+		}
+	}
+	
+	@Override
+	public void rebuildFollowedFilters() {
+		MessageManagerImpl.enqueueOnBackend(new RebuildFollowedFiltersTask(null));
+	}
+	
+	/*
+	 * Counts the followers, followed users and messages of all the users
+	 * and replaces their counters with them
+	 */
+	public static class RecountUsersTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+		
+		private static final int LIMIT = 100;
+		
+		@CheckForNull
+		private Cursor currentCursor;
+		
+		public RecountUsersTask(@CheckForNull Cursor cursor) {
+			this.currentCursor = cursor;
+		}
+		
+		@Override
+		public void run() {
+			QueryResultIterator<Key<User>> it = ofy().load().type(User.class).startAt(currentCursor).limit(LIMIT).keys().iterator();
+			List<Key<User>> users = ListChunk.copyQueryResultIterator(it);
+			if (users.size() == 0)
+				return;
+			
+			List<Key<UserFollowersIndex>> followersKeys = new ArrayList<>(users.size());
+			List<Key<UserFollowedIndex>> followedKeys = new ArrayList<>(users.size());
+			for (Key<User> user : users) {
+				followersKeys.add(UserFollowersIndex.key(user));
+				followedKeys.add(UserFollowedIndex.key(user));
+			}
+			Map<Key<UserFollowedIndex>, UserFollowedIndex> followedIndexes = ofy().load().keys(followedKeys);
+			Map<Key<User>, long[]> followers = getFollowerIds(ofy().load().keys(followersKeys).values());
+			
+			for (Key<User> user : users) {
+				Counts counts = new Counts();
+				long[] followerIds = followers.get(user);
+				counts.add(Counter.FOLLOWERS, followerIds != null ? followerIds.length : 0);
+				UserFollowedIndex followedIndex = followedIndexes.get(UserFollowedIndex.key(user));
+				counts.add(Counter.FOLLOWED, followedIndex != null ? followedIndex.getFollowedCount() : 0);
+				counts.add(Counter.MESSAGES, ofy().load().type(Message.class).filter("sender", user).count());
+				UserCounters.reset(user, counts);
+			}
+			
+			MessageManagerImpl.enqueueOnBackend(new RecountUsersTask(it.getCursor()));
+		}
+	}
+	
+	@Override
+	public void recountUsers() {
+		MessageManagerImpl.enqueueOnBackend(new RecountUsersTask(null));
+	}
+	
+	@Override
+	public Result<Map<Key<User>, Counts>> getCounts(Collection<Key<User>> users) {
+		return UserCounters.getAsync(users);
+	}
+	
+	/*
+	 * Moves the follow indexes of all the users to their well-known id,
+	 * saves the indexes of the previous version in the compact format,
+	 * and moves the followers written in the followers indexes before they were sharded to the shards
+	 */
+	public static class MigrateFollowIndexesTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+		
+		private static final int LIMIT = 100;
+		
+		@CheckForNull
+		private Cursor currentCursor;
+		
+		public MigrateFollowIndexesTask(@CheckForNull Cursor cursor) {
+			this.currentCursor = cursor;
+		}
 		
-		followersIndex.getFollowers().remove(follower);
-		followedIndex.getFollowed().remove(followed);
+		@Override
+		public void run() {
+			QueryResultIterator<Key<User>> it = ofy().load().type(User.class).startAt(currentCursor).limit(LIMIT).keys().iterator();
+			List<Key<User>> users = ListChunk.copyQueryResultIterator(it);
+			if (users.size() == 0)
+				return;
+			
+			List<Key<?>> keys = new ArrayList<>(2 * users.size());
+			for (Key<User> user : users) {
+				keys.add(UserFollowedIndex.key(user));
+				keys.add(UserFollowersIndex.key(user));
+			}
+			Map<Key<Object>, Object> indexes = ofy().load().keys(keys.toArray(new Key<?>[keys.size()]));
+			for (final Key<User> user : users) {
+				UserFollowedIndex followedIndex = getFollowedIndex(user, (UserFollowedIndex)indexes.get(UserFollowedIndex.key(user)));
+				UserFollowersIndex followersIndex = getFollowersIndex(user, (UserFollowersIndex)indexes.get(UserFollowersIndex.key(user)));
+				if (followedIndex.isPreviousVersion() || followersIndex.isPreviousVersion())
+					// saved again in the compact format, read again in the transaction as a follow may have changed them
+					ofy().transact(new VoidWork() {
+						@Override
+						public void vrun() {
+							ofy().save().entities(MessageManagerImpl.loadAll(Arrays.<Key<?>>asList(UserFollowedIndex.key(user), UserFollowersIndex.key(user))).values());
+						}
+					});
+				if (followersIndex.getFollowerCount() > 0)
+					moveToShards(followersIndex);
+			}
+			
+			MessageManagerImpl.enqueueOnBackend(new MigrateFollowIndexesTask(it.getCursor()));
+		}
 		
-		ofy().save().entities(followedIndex, followersIndex);
-		msgManager.removeUserMessagesReceiver(followed, follower);
+		/*
+		 * The users followed by a fan-out on read user are only found in the shards of its followers.
+		 * In transactions on the index and at most XG_MAX_ENTITY_GROUPS - 1 shards, so that the follows
+		 * and unfollows made meanwhile are kept.
+		 */
+		private static void moveToShards(UserFollowersIndex followersIndex) {
+			final Key<User> user = followersIndex.getUser();
+			final Map<Integer, List<Key<User>>> moves = byShard(followersIndex.getFollowerIds(), followersIndex);
+			for (final List<Integer> targets : Lists.partition(new ArrayList<>(moves.keySet()), CONSTANTS.DATASTORE.XG_MAX_ENTITY_GROUPS - 1))
+				ofy().transact(new VoidWork() {
+					@Override
+					public void vrun() {
+						List<Key<?>> keys = new ArrayList<>(targets.size() + 1);
+						keys.add(UserFollowersIndex.key(user));
+						for (Integer target : targets)
+							keys.add(UserFollowersShard.key(user, target.intValue()));
+						Map<Key<Object>, Object> loaded = MessageManagerImpl.loadAll(keys);
+						UserFollowersIndex index = (UserFollowersIndex)loaded.get(UserFollowersIndex.key(user));
+						if (index == null)
+							return;
+						List<Object> changed = new ArrayList<>(keys.size());
+						changed.add(index);
+						for (Integer target : targets) {
+							UserFollowersShard shard = (UserFollowersShard)loaded.get(UserFollowersShard.key(user, target.intValue()));
+							if (shard == null)
+								shard = new UserFollowersShard(user, target.intValue(), index.isFanOutOnRead());
+							else if (index.isFanOutOnRead())
+								shard.setFanOutOnRead(true);
+							for (Key<User> follower : moves.get(target))
+								// unless unfollowed meanwhile
+								if (index.removeFollower(follower))
+									shard.addFollower(follower);
+							changed.add(shard);
+						}
+						ofy().save().entities(changed);
+					}
+				});
+		}
+	}
+	
+	@Override
+	public void migrateFollowIndexes() {
+		MessageManagerImpl.enqueueOnBackend(new MigrateFollowIndexesTask(null));
+	}
+	
+	/*
+	 * Reserves the login and email of the users created before the reservations
+	 */
+	public static class MigrateUniqueValuesTask implements DeferredTask {
+		private static final long serialVersionUID = 1L;
+		
+		private static final Logger log = Logger.getLogger(MigrateUniqueValuesTask.class.getSimpleName());
+		
+		private static final int LIMIT = 100;
+		
+		@CheckForNull
+		private Cursor currentCursor;
+		
+		public MigrateUniqueValuesTask(@CheckForNull Cursor cursor) {
+			this.currentCursor = cursor;
+		}
+		
+		@Override
+		public void run() {
+			QueryResultIterator<User> it = ofy().load().type(User.class).startAt(currentCursor).limit(LIMIT).iterator();
+			List<User> users = ListChunk.copyQueryResultIterator(it);
+			if (users.size() == 0) {
+				// the logins are no longer looked for with a query
+				ofy().save().entity(UserUniqueValue.migrated()).now();
+				return;
+			}
+			
+			for (final User user : users) {
+				try {
+					ofy().transact(new VoidWork() {
+						@Override
+						public void vrun() {
+							claimLoginAndEmail(user.getKey(), user.getLogin(), user.getEmail(), null, null);
+						}
+					});
+				} catch (IllegalArgumentException e) {
+					// a duplicate created before the reservations, left to be fixed by hand
+					log.warning("User " + user.getKey() + " not migrated: " + e.getMessage());
+				}
+			}
+			
+			MessageManagerImpl.enqueueOnBackend(new MigrateUniqueValuesTask(it.getCursor()));
+		}
+	}
+	
+	@Override
+	public void migrateUniqueValues() {
+		MessageManagerImpl.enqueueOnBackend(new MigrateUniqueValuesTask(null));
 	}
 	
 	@Override
 	public ListChunk<User> getAllUsers(String encodedCursor, int limit) {
+		return getAllUsersAsync(encodedCursor, limit).now();
+	}
+	
+	/*
+	 * The query is started, the page is read when its users are asked for
+	 */
+	@Override
+	public Result<ListChunk<User>> getAllUsersAsync(String encodedCursor, int limit) {
 		Cursor cursor = CursorUtil.safeFromEncodedString(encodedCursor);
-		Query<User> query = ofy().load().type(User.class).order("-creation").limit(limit);
+		Query<User> query = ofy().load().type(User.class).order("-creation").limit(limit).chunk(limit);
 		QueryResultIterable<User> iterable = query.startAt(cursor).iterable();
-		return new ListChunk<>(iterable);  
+		return new ResultNow<>(new ListChunk<>(iterable, limit));
 	}
 
 	@Override
@@ -208,25 +1056,81 @@ public class UserManagerImpl implements UserManager {
 		return getUserFollowers(cursorStr, limit, user);
 	}
 	
+	/*
+	 * The followers are read from the ids of the followers index and of its shards rather than queried,
+	 * one part after the other: the followers written in the index before it was sharded, then each shard
+	 * by increasing id. The shards are read a few at a time from the one of the cursor, so that a page
+	 * does not decode all the followers. The page of users is then read from the entity cache.
+	 * The cursor is the part and the id of the last user of the page. A follower moved by a split
+	 * while the pages are read may be listed twice or skipped.
+	 */
 	@Override
 	public ListChunk<User> getUserFollowers(String cursorStr, int limit, Key<User> key) {
-		Cursor cursor = CursorUtil.safeFromEncodedString(cursorStr);
-		QueryResultIterator<Key<UserFollowedIndex>> keys = ofy().load()
-																.type(UserFollowedIndex.class)
-																.limit(limit)
-																.startAt(cursor)
-																.filter("followed", key)
-																.keys()
-																.iterator();
-		
-		TranslatingQueryResultIterator<Key<UserFollowedIndex>, Key<User>> it = new TranslatingQueryResultIterator<Key<UserFollowedIndex>, Key<User>>(keys) {
+		return getUserFollowersAsync(cursorStr, limit, key).now();
+	}
+	
+	/*
+	 * The index is read at once, the shards and the users when the page is asked for
+	 */
+	@Override
+	public Result<ListChunk<User>> getUserFollowersAsync(@CheckForNull final String cursorStr, final int limit, final Key<User> key) {
+		final Map<Key<UserFollowersIndex>, UserFollowersIndex> indexes = ofy().load().keys(Collections.singletonList(UserFollowersIndex.key(key)));
+		return new ResultCache<ListChunk<User>>() {
+			private static final long serialVersionUID = 1L;
 			@Override
-			protected Key<User> translate(Key<UserFollowedIndex> from) {
-				return from.getParent();
+			protected ListChunk<User> nowUncached() {
+				return readFollowersPage(indexes.get(UserFollowersIndex.key(key)), cursorStr, limit, key);
 			}
 		};
-		Iterable<User> followers = ofy().load().keys(ListChunk.copyQueryResultIterator(it)).values();
-		return new ListChunk<>(followers, it.getCursor());
+	}
+	
+	private ListChunk<User> readFollowersPage(@CheckForNull UserFollowersIndex index, @CheckForNull String cursorStr, int limit, Key<User> key) {
+		int part = 0;
+		long last = 0;
+		if (cursorStr != null) {
+			int separator = cursorStr.indexOf(':');
+			try {
+				part = Integer.parseInt(cursorStr.substring(0, Math.max(0, separator)));
+				last = Long.parseLong(cursorStr.substring(separator + 1), Character.MAX_RADIX);
+			} catch (NumberFormatException e) {
+				// the list starts again
+				part = 0;
+				last = 0;
+			}
+		}
+		// part 0 is the index, part i + 1 the shard i
+		int parts = index != null ? index.getShardCount() + 1 : 0;
+		List<Key<User>> keys = new ArrayList<>(limit);
+		String next = cursorStr;
+		Map<Key<UserFollowersShard>, UserFollowersShard> shards = Collections.emptyMap();
+		while (part < parts && keys.size() < limit) {
+			long[] ids;
+			if (part == 0)
+				ids = index.getFollowerIds();
+			else {
+				Key<UserFollowersShard> shardKey = UserFollowersShard.key(key, part - 1);
+				if (!shards.containsKey(shardKey)) {
+					List<Key<UserFollowersShard>> batch = new ArrayList<>(CONSTANTS.FOLLOWERS.PAGE_SHARDS);
+					for (int i = part - 1; i < parts - 1 && batch.size() < CONSTANTS.FOLLOWERS.PAGE_SHARDS; i++)
+						batch.add(UserFollowersShard.key(key, i));
+					shards = new LinkedHashMap<>(ofy().load().keys(batch));
+					// the missing shards are not read again
+					for (Key<UserFollowersShard> missing : batch)
+						if (!shards.containsKey(missing))
+							shards.put(missing, null);
+				}
+				UserFollowersShard shard = shards.get(shardKey);
+				ids = shard != null ? shard.getFollowerIds() : new long[0];
+			}
+			long lastAdded = addIdsAfter(ids, last, limit, keys);
+			if (lastAdded != last)
+				next = part + ":" + Long.toString(lastAdded, Character.MAX_RADIX);
+			if (keys.size() < limit) {
+				part++;
+				last = 0;
+			}
+		}
+		return new ListChunk<>(getUsers(keys), next != null ? next : "");
 	}
 	
 	@Override
@@ -236,24 +1140,67 @@ public class UserManagerImpl implements UserManager {
 		return getUserFollowed(cursorStr, limit, user);
 	}
 
+	/*
+	 * The users of the sorted ids after the cursor, which is the id of the last user of the page
+	 */
 	@Override
 	public ListChunk<User> getUserFollowed(String cursorStr, int limit, Key<User> key) {
-		Cursor cursor = CursorUtil.safeFromEncodedString(cursorStr);
-		QueryResultIterator<Key<UserFollowersIndex>> keys = ofy().load()
-																.type(UserFollowersIndex.class)
-																.limit(limit)
-																.startAt(cursor)
-																.filter("followers", key)
-																.keys()
-																.iterator();
-		TranslatingQueryResultIterator<Key<UserFollowersIndex>, Key<User>> it = new TranslatingQueryResultIterator<Key<UserFollowersIndex>, Key<User>>(keys) {
+		return getUserFollowedAsync(cursorStr, limit, key).now();
+	}
+	
+	/*
+	 * The index is read at once, the users when the page is asked for
+	 */
+	@Override
+	public Result<ListChunk<User>> getUserFollowedAsync(@CheckForNull final String cursorStr, final int limit, final Key<User> key) {
+		final Map<Key<UserFollowedIndex>, UserFollowedIndex> indexes = ofy().load().keys(Collections.singletonList(UserFollowedIndex.key(key)));
+		return new ResultCache<ListChunk<User>>() {
+			private static final long serialVersionUID = 1L;
 			@Override
-			protected Key<User> translate(Key<UserFollowersIndex> from) {
-				return from.getParent();
+			protected ListChunk<User> nowUncached() {
+				UserFollowedIndex index = indexes.get(UserFollowedIndex.key(key));
+				long[] ids = index != null ? index.getFollowedIds() : new long[0];
+				long last = 0;
+				if (cursorStr != null) {
+					try {
+						last = Long.parseLong(cursorStr, Character.MAX_RADIX);
+					} catch (NumberFormatException e) {
+						// the cursors of the previous version were query cursors, the list starts again
+						last = 0;
+					}
+				}
+				List<Key<User>> keys = new ArrayList<>(limit);
+				long lastAdded = addIdsAfter(ids, last, limit, keys);
+				String next = keys.size() > 0 ? Long.toString(lastAdded, Character.MAX_RADIX) : cursorStr;
+				return new ListChunk<>(getUsers(keys), next != null ? next : "");
 			}
 		};
-		Iterable<User> followed = ofy().load().keys(ListChunk.copyQueryResultIterator(it)).values();
-		return new ListChunk<>(followed, it.getCursor());
+	}
+	
+	/*
+	 * Adds the keys of the sorted ids after last until there are limit keys. Returns the last id added, or last
+	 */
+	private static long addIdsAfter(long[] ids, long last, int limit, List<Key<User>> keys) {
+		int from = Arrays.binarySearch(ids, last);
+		from = from >= 0 ? from + 1 : -from - 1;
+		int to = Math.min(ids.length, from + limit - keys.size());
+		for (int i = from; i < to; i++)
+			keys.add(Key.create(User.class, ids[i]));
+		return to > from ? ids[to - 1] : last;
+	}
+	
+	/*
+	 * The users of the keys in their order, the deleted users are skipped
+	 */
+	private List<User> getUsers(List<Key<User>> keys) {
+		Map<Key<User>, User> loaded = entityCache.get(keys);
+		List<User> users = new ArrayList<>(keys.size());
+		for (Key<User> userKey : keys) {
+			User user = loaded.get(userKey);
+			if (user != null)
+				users.add(user);
+		}
+		return users;
 	}
 
 //	@Override
@@ -1,6 +1,7 @@
 package com.twitterlite.models.message;
 
 import java.io.Serializable;
+import java.util.Map;
 
 import javax.annotation.CheckForNull;
 
@@ -85,10 +86,20 @@ public class Message extends BaseModel {
 		
 		
 		public static MessageGetDTO get(Message message) {
+			return get(message, message.sender.get());
+		}
+		/*
+		 * The senders of a list of messages are loaded together, see MessageManager.getSenders
+		 */
+		public static MessageGetDTO get(Message message, Map<Key<User>, User> senders) {
+			User sender = senders.get(message.sender.key());
+			return get(message, sender != null ? sender : message.sender.get());
+		}
+		private static MessageGetDTO get(Message message, User sender) {
 			MessageGetDTO dto = new MessageGetDTO();
 			dto.text = message.text;
 			dto.creation = message.creation;
-			dto.sender = UserGetDTO.get(message.sender.get());
+			dto.sender = UserGetDTO.get(sender);
 			dto.messageKey = message.getKey().getString();
 			return dto;
 		}
@@ -19,11 +19,32 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 import static com.google.common.base.Preconditions.*;
 
+/*
+ * A message has several receivers index shards.
+ * 
+ * The head shard (HEAD_SHARD_ID) is created with the message and receives
+ * the receivers added afterwards (new followers of the sender).
+ * The following shards are written once by the fan-out task, one shard per page
+ * of at most SHARD_CAPACITY followers, so that a page never rewrites a previous shard.
+ * Once the head shard is full the receivers added afterwards spill into the shards
+ * from FIRST_SPILL_SHARD_ID, counted in the head shard.
+ */
 @Entity(name = "M_index")
 @Cache
 @Unindex
 public class MessageReceiversIndex extends BaseModel {
 
+	public static final long HEAD_SHARD_ID = 1;
+	public static final long FIRST_FAN_OUT_SHARD_ID = HEAD_SHARD_ID + 1;
+	// far above the fan-out shards, so that a fan-out which is still pending does not overwrite them
+	public static final long FIRST_SPILL_SHARD_ID = 1L << 40;
+	
+	// number of receivers written in a fan-out shard
+	public static final int SHARD_CAPACITY = 100;
+	
+	// datastore limit for the number of values of an indexed list property
+	public static final int MAX_RECEIVERS = 5000;
+	
 	@Id
 	@CheckForNull 
 	private Long id = null;
@@ -34,23 +55,51 @@ public class MessageReceiversIndex extends BaseModel {
 	@Parent
 	private Key<Message> message;
 	
+	// the sender of the message, so that the shards of a receiver can be found by sender
+	@Index
+	@CheckForNull
+	private Key<User> sender;
+	
 	@Index
 	private List<Key<User>> receivers;
 	
+	// on the head shard, the number of spill shards
+	private int spillShards;
+	
 	@Override
 	public Key<MessageReceiversIndex> getKey() {
 		checkNotNull(this.id);
 		return Key.create(message, this.getClass(), this.id.longValue());
 	}
+	
+	public static Key<MessageReceiversIndex> key(Key<Message> message, long shard) {
+		return Key.create(message, MessageReceiversIndex.class, shard);
+	}
 
 	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
 	MessageReceiversIndex() {}
 	
-	public MessageReceiversIndex(Key<Message> message) {
+	/*
+	 * The head shard of the message
+	 */
+	public MessageReceiversIndex(Key<Message> message, Key<User> sender, long creation) {
+		this(message, sender, HEAD_SHARD_ID, creation, new LinkedList<Key<User>>());
+	}
+	
+	/*
+	 * The creation is the one of the message so that the timeline can be sorted on it
+	 */
+	public MessageReceiversIndex(Key<Message> message, Key<User> sender, long shard, long creation, List<Key<User>> receivers) {
 		checkNotNull(message);
+		checkNotNull(sender);
+		checkNotNull(receivers);
+		checkArgument(shard >= HEAD_SHARD_ID);
+		checkArgument(receivers.size() <= MAX_RECEIVERS);
+		this.id = shard;
 		this.message = message;
-		this.creation = System.currentTimeMillis();
-		this.receivers = new LinkedList<>();
+		this.sender = sender;
+		this.creation = creation;
+		this.receivers = receivers;
 	}
 	
 	public List<Key<User>> getReceivers() {
@@ -58,6 +107,23 @@ public class MessageReceiversIndex extends BaseModel {
 			this.receivers = new LinkedList<>();
 		return this.receivers;
 	}
+	public boolean isFull() {
+		return getReceivers().size() >= MAX_RECEIVERS;
+	}
+	public int getSpillShardCount() {
+		return spillShards;
+	}
+	public long getLastSpillShardId() {
+		checkState(spillShards > 0);
+		return FIRST_SPILL_SHARD_ID + spillShards - 1;
+	}
+	/*
+	 * Returns the id of the new spill shard, the head shard has to be saved
+	 */
+	public long addSpillShard() {
+		spillShards++;
+		return getLastSpillShardId();
+	}
 	public Long getId() {
 		checkNotNull(this.id);
 		return id;
@@ -71,4 +137,10 @@ public class MessageReceiversIndex extends BaseModel {
 	public void setMessage(Key<Message> message) {
 		this.message = message;
 	}
+	public @CheckForNull Key<User> getSender() {
+		return sender;
+	}
+	public void setSender(Key<User> sender) {
+		this.sender = sender;
+	}
 }
@@ -0,0 +1,54 @@
+package com.twitterlite.models.session;
+
+import javax.annotation.CheckForNull;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Unindex;
+import com.twitterlite.models.base.BaseModel;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * A session token revoked by a logout. The id is the id of the token, so that the logouts
+ * don't share any entity group and a token is checked with a get by key.
+ */
+@Entity(name = "S_revokedToken")
+@Cache
+@Unindex
+public class RevokedSession extends BaseModel {
+
+	@Id
+	@CheckForNull 
+	private String id = null;
+	
+	// the token is refused after it anyway
+	private long expiration;
+	
+	@Override
+	public Key<RevokedSession> getKey() {
+		checkNotNull(this.id);
+		return Key.create(RevokedSession.class, this.id);
+	}
+	
+	public static Key<RevokedSession> key(String tokenId) {
+		return Key.create(RevokedSession.class, tokenId);
+	}
+
+	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
+	RevokedSession() {}
+	
+	public RevokedSession(String tokenId, long expiration) {
+		checkNotNull(tokenId);
+		this.id = tokenId;
+		this.expiration = expiration;
+	}
+	
+	public long getExpiration() {
+		return expiration;
+	}
+}
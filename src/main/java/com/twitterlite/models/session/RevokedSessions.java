@@ -0,0 +1,60 @@
+package com.twitterlite.models.session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Unindex;
+import com.twitterlite.models.base.BaseModel;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * The ids of the session tokens revoked by a logout, in one entity for all the tokens: the previous version
+ * of RevokedSession. It is not written any more, it is read until the tokens it lists expire.
+ */
+@Entity(name = "S_revoked")
+@Unindex
+public class RevokedSessions extends BaseModel {
+
+	public static final long ID = 1;
+	
+	@Id
+	@CheckForNull 
+	private Long id = null;
+	
+	// both lists are in the same order
+	private List<String> tokenIds;
+	private List<Long> expirations;
+	
+	@Override
+	public Key<RevokedSessions> getKey() {
+		checkNotNull(this.id);
+		return Key.create(RevokedSessions.class, this.id.longValue());
+	}
+	
+	public static Key<RevokedSessions> key() {
+		return Key.create(RevokedSessions.class, ID);
+	}
+
+	public RevokedSessions() {
+		this.id = ID;
+		this.tokenIds = new ArrayList<>();
+		this.expirations = new ArrayList<>();
+	}
+	
+	public List<String> getTokenIds() {
+		if (this.tokenIds == null)
+			this.tokenIds = new ArrayList<>();
+		return this.tokenIds;
+	}
+	public List<Long> getExpirations() {
+		if (this.expirations == null)
+			this.expirations = new ArrayList<>();
+		return this.expirations;
+	}
+}
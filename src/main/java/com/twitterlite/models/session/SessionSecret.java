@@ -0,0 +1,59 @@
+package com.twitterlite.models.session;
+
+import javax.annotation.CheckForNull;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Unindex;
+import com.twitterlite.models.base.BaseModel;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * The key signing the session tokens, shared by all the instances.
+ * It is not cached in memcache.
+ */
+@Entity(name = "S_secret")
+@Unindex
+public class SessionSecret extends BaseModel {
+
+	public static final long ID = 1;
+	
+	@Id
+	@CheckForNull 
+	private Long id = null;
+	
+	private long creation;
+	
+	private byte[] secret;
+	
+	@Override
+	public Key<SessionSecret> getKey() {
+		checkNotNull(this.id);
+		return Key.create(SessionSecret.class, this.id.longValue());
+	}
+	
+	public static Key<SessionSecret> key() {
+		return Key.create(SessionSecret.class, ID);
+	}
+
+	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
+	SessionSecret() {}
+	
+	public SessionSecret(byte[] secret) {
+		checkNotNull(secret);
+		this.id = ID;
+		this.creation = System.currentTimeMillis();
+		this.secret = secret.clone();
+	}
+	
+	public byte[] getSecret() {
+		return secret.clone();
+	}
+	public long getCreation() {
+		return creation;
+	}
+}
@@ -0,0 +1,2 @@
+@com.twitterlite.util.annotations.EverythingIsNonnullAndTaintedByDefault
+package com.twitterlite.models.session;
\ No newline at end of file
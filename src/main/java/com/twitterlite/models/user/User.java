@@ -94,6 +94,12 @@ public class User extends BaseModel {
 		
 		// Metadata
 		@CheckForNull public Boolean isFollowedByCurrentUser = Boolean.FALSE;
+		// approximate, see UserManager.getCounts
+		@CheckForNull public Long followersCount;
+		@CheckForNull public Long followedCount;
+		@CheckForNull public Long messagesCount;
+		// only set by the login, to be sent in the CONSTANTS.SESSION.TOKEN_HEADER header
+		@CheckForNull public String sessionToken;
 		
 		public UserGetDTO(){}
 		public static UserGetDTO get(User user) {
@@ -127,6 +133,18 @@ public class User extends BaseModel {
 		public Boolean getIsFollowedByCurrentUser() {
 			return isFollowedByCurrentUser;
 		}
+		public Long getFollowersCount() {
+			return followersCount;
+		}
+		public Long getFollowedCount() {
+			return followedCount;
+		}
+		public Long getMessagesCount() {
+			return messagesCount;
+		}
+		public String getSessionToken() {
+			return sessionToken;
+		}
 	}
 	
 	/* 
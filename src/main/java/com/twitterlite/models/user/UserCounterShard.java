@@ -0,0 +1,130 @@
+package com.twitterlite.models.user;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Unindex;
+import com.twitterlite.models.base.BaseModel;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * A part of the counts of a user: the counts are the sums over the shards of the user.
+ *
+ * The shards are root entities, each one in its own entity group, so that the writes of the counts
+ * of a user do not contend. The id is the id of the user and the shard number.
+ */
+@Entity(name = "U_CounterShard")
+@Cache
+@Unindex
+public class UserCounterShard extends BaseModel {
+
+	public static enum Counter {
+		FOLLOWERS, FOLLOWED, MESSAGES
+	}
+
+	/*
+	 * The counts of a user, or the deltas to add to them
+	 */
+	public static class Counts implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long[] values = new long[Counter.values().length];
+
+		public long get(Counter counter) {
+			return values[counter.ordinal()];
+		}
+		public void add(Counter counter, long delta) {
+			values[counter.ordinal()] += delta;
+		}
+		public void add(Counts counts) {
+			for (int i = 0; i < values.length; i++)
+				values[i] += counts.values[i];
+		}
+		public boolean isZero() {
+			for (long value : values)
+				if (value != 0)
+					return false;
+			return true;
+		}
+	}
+
+	@Id
+	@CheckForNull
+	private String id = null;
+
+	Key<User> user;
+	private int shard;
+
+	private long followers;
+	private long followed;
+	private long messages;
+
+	@Override
+	public Key<UserCounterShard> getKey() {
+		checkNotNull(this.id);
+		return Key.create(UserCounterShard.class, this.id);
+	}
+
+	public static Key<UserCounterShard> key(Key<User> user, int shard) {
+		return Key.create(UserCounterShard.class, user.getId() + ":" + shard);
+	}
+
+	/*
+	 * The keys of the shards 0 to count - 1
+	 */
+	public static List<Key<UserCounterShard>> keys(Key<User> user, int count) {
+		List<Key<UserCounterShard>> keys = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			keys.add(key(user, i));
+		return keys;
+	}
+
+	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
+	UserCounterShard() {}
+
+	public UserCounterShard(Key<User> user, int shard) {
+		checkNotNull(user);
+		this.id = user.getId() + ":" + shard;
+		this.user = user;
+		this.shard = shard;
+	}
+
+	public void add(Counts deltas) {
+		this.followers += deltas.get(Counter.FOLLOWERS);
+		this.followed += deltas.get(Counter.FOLLOWED);
+		this.messages += deltas.get(Counter.MESSAGES);
+	}
+
+	/*
+	 * Replaces the counts of the shard
+	 */
+	public void set(Counts counts) {
+		this.followers = counts.get(Counter.FOLLOWERS);
+		this.followed = counts.get(Counter.FOLLOWED);
+		this.messages = counts.get(Counter.MESSAGES);
+	}
+
+	public Counts getCounts() {
+		Counts counts = new Counts();
+		counts.add(Counter.FOLLOWERS, followers);
+		counts.add(Counter.FOLLOWED, followed);
+		counts.add(Counter.MESSAGES, messages);
+		return counts;
+	}
+	public Key<User> getUser() {
+		return user;
+	}
+	public int getShard() {
+		return shard;
+	}
+}
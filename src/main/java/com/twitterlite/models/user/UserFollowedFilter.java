@@ -0,0 +1,133 @@
+package com.twitterlite.models.user;
+
+import javax.annotation.CheckForNull;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
+import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.annotation.Unindex;
+import com.twitterlite.models.base.BaseModel;
+import com.twitterlite.util.IdBloomFilter;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * A Bloom filter of the users followed by a user, in the entity group of its UserFollowedIndex.
+ *
+ * It is much smaller than the index and kept in the entity cache: a user who is not in the filter
+ * is not followed, the others have to be checked in the index.
+ * The unfollowed users cannot be removed from the filter, it is rebuilt from the index
+ * when too many users were unfollowed, or followed since it was sized.
+ */
+@Entity(name = "U_FollowedFilter")
+@Cache
+@Unindex
+public class UserFollowedFilter extends BaseModel {
+
+	public static final long ID = 1;
+	public static final double FALSE_POSITIVE_RATE = 0.01;
+	public static final int MIN_CAPACITY = 64;
+
+	@Id
+	@CheckForNull
+	private Long id = null;
+
+	@Parent
+	Key<User> user;
+
+	@CheckForNull
+	private byte[] bits;
+
+	// number of followed users the filter is sized for
+	private int capacity;
+	// number of ids put in the filter, and of unfollowed users since the last rebuild
+	private int size;
+	private int removed;
+
+	@Ignore
+	@CheckForNull
+	private IdBloomFilter filter;
+
+	@Override
+	public Key<UserFollowedFilter> getKey() {
+		checkNotNull(this.id);
+		return Key.create(user, UserFollowedFilter.class, this.id.longValue());
+	}
+
+	public static Key<UserFollowedFilter> key(Key<User> user) {
+		return Key.create(user, UserFollowedFilter.class, ID);
+	}
+
+	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
+	UserFollowedFilter() {}
+
+	public UserFollowedFilter(UserFollowedIndex index) {
+		checkNotNull(index);
+		this.id = ID;
+		this.user = index.getUser();
+		rebuild(index);
+	}
+
+	/*
+	 * Sized for twice the followed users, so that it is not rebuilt at each follow
+	 */
+	public void rebuild(UserFollowedIndex index) {
+		long[] followed = index.getFollowedIds();
+		this.capacity = Math.max(MIN_CAPACITY, 2 * followed.length);
+		this.size = followed.length;
+		this.removed = 0;
+		this.filter = new IdBloomFilter(capacity, FALSE_POSITIVE_RATE);
+		for (long id : followed)
+			this.filter.put(id);
+	}
+
+	@OnLoad
+	void decode() {
+		this.filter = bits != null ? IdBloomFilter.fromBytes(bits) : null;
+	}
+
+	@OnSave
+	void encode() {
+		this.bits = filter != null ? filter.toBytes() : null;
+	}
+
+	/*
+	 * False if the user is not followed
+	 */
+	public boolean mightFollow(Key<User> followedUser) {
+		return filter == null || filter.mightContain(followedUser.getId());
+	}
+
+	/*
+	 * The index is the one already updated
+	 */
+	public void addFollowed(Key<User> followedUser, UserFollowedIndex index) {
+		if (filter == null || size >= capacity) {
+			rebuild(index);
+			return;
+		}
+		filter.put(followedUser.getId());
+		size++;
+	}
+
+	public void removeFollowed(UserFollowedIndex index) {
+		removed++;
+		// the removed users are false positives
+		if (removed > capacity / 4)
+			rebuild(index);
+	}
+
+	public Key<User> getUser() {
+		return user;
+	}
+	public int getCapacity() {
+		return capacity;
+	}
+}
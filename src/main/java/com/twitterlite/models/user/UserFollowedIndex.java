@@ -9,10 +9,15 @@ import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.IgnoreSave;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
 import com.googlecode.objectify.annotation.Parent;
 import com.googlecode.objectify.annotation.Unindex;
 import com.twitterlite.models.base.BaseModel;
+import com.twitterlite.util.CompactIdList;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
@@ -23,6 +28,9 @@ import static com.google.common.base.Preconditions.*;
 @Unindex
 public class UserFollowedIndex extends BaseModel{
 
+	// each user has only one index which has a well-known id
+	public static final long ID = 1;
+	
 	@Id
 	@CheckForNull 
 	private Long id = null;
@@ -33,13 +41,33 @@ public class UserFollowedIndex extends BaseModel{
 	@Parent
 	Key<User> user;
 	
-	@Index
+	// the ids of the followed users, stored as a blob which is decoded in a primitive array
+	@Ignore
+	@CheckForNull
+	private CompactIdList followedList;
+	@CheckForNull
+	private byte[] followedBlob;
+	// the list of the previous version, converted when loaded
+	@IgnoreSave
+	@CheckForNull
 	private List<Key<User>> followed;
+	@Ignore
+	private boolean previousVersion;
+	
+	// The backfill of a followed user only adds the follower to the receivers of its recent messages:
+	// the messages created at or before the horizon of a followed user are not in the follower timeline.
+	// Both lists are in the same order.
+	private List<Key<User>> horizonUsers;
+	private List<Long> horizons;
 	
 	@Override
-	public Key<? extends BaseModel> getKey() {
+	public Key<UserFollowedIndex> getKey() {
 		checkNotNull(this.id);
-		return Key.create(user, this.getClass(), this.id.longValue());
+		return Key.create(user, UserFollowedIndex.class, this.id.longValue());
+	}
+	
+	public static Key<UserFollowedIndex> key(Key<User> user) {
+		return Key.create(user, UserFollowedIndex.class, ID);
 	}
 
 	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
@@ -47,14 +75,87 @@ public class UserFollowedIndex extends BaseModel{
 	
 	public UserFollowedIndex(Key<User> user) {
 		checkNotNull(user);
+		this.id = ID;
 		this.user = user;
 		this.creation = System.currentTimeMillis();
-		this.followed = new LinkedList<>();
+		this.followedList = new CompactIdList();
+	}
+	@OnLoad
+	void decodeFollowed() {
+		this.followedList = CompactIdList.decode(followedBlob);
+		if (followed != null) {
+			for (Key<User> key : followed)
+				this.followedList.add(key.getId());
+			this.followed = null;
+			this.previousVersion = true;
+		}
+	}
+	@OnSave
+	void encodeFollowed() {
+		CompactIdList list = getFollowedList();
+		this.followedBlob = list.encode();
+	}
+	private CompactIdList getFollowedList() {
+		if (followedList == null)
+			this.followedList = new CompactIdList();
+		return this.followedList;
+	}
+	public boolean isFollowing(Key<User> followedUser) {
+		return getFollowedList().contains(followedUser.getId());
+	}
+	/*
+	 * Returns false if nothing changed
+	 */
+	public boolean addFollowed(Key<User> followedUser) {
+		return getFollowedList().add(followedUser.getId());
+	}
+	public boolean removeFollowed(Key<User> followedUser) {
+		return getFollowedList().remove(followedUser.getId());
+	}
+	public int getFollowedCount() {
+		return getFollowedList().size();
+	}
+	public long[] getFollowedIds() {
+		return getFollowedList().toArray();
+	}
+	public void setHorizon(Key<User> followedUser, long horizon) {
+		checkNotNull(followedUser);
+		removeHorizon(followedUser);
+		getHorizonUsers().add(followedUser);
+		getHorizons().add(horizon);
+	}
+	public boolean removeHorizon(Key<User> followedUser) {
+		int i = getHorizonUsers().indexOf(followedUser);
+		if (i < 0)
+			return false;
+		getHorizonUsers().remove(i);
+		getHorizons().remove(i);
+		return true;
+	}
+	public List<Key<User>> getHorizonUsers() {
+		if (horizonUsers == null)
+			this.horizonUsers = new LinkedList<>();
+		return this.horizonUsers;
+	}
+	public List<Long> getHorizons() {
+		if (horizons == null)
+			this.horizons = new LinkedList<>();
+		return this.horizons;
+	}
+	/*
+	 * The indexes created before they had a well-known id are moved to it.
+	 * Returns the key of the entity to delete.
+	 */
+	public Key<UserFollowedIndex> moveToWellKnownId() {
+		Key<UserFollowedIndex> previous = getKey();
+		this.id = ID;
+		return previous;
 	}
-	public List<Key<User>> getFollowed() {
-		if (followed == null)
-			this.followed = new LinkedList<>();
-		return this.followed;
+	/*
+	 * Whether the index was loaded in the format of the previous version, it is converted when saved
+	 */
+	public boolean isPreviousVersion() {
+		return previousVersion;
 	}
 	public Long getId() {
 		checkNotNull(this.id);
@@ -1,28 +1,46 @@
 package com.twitterlite.models.user;
 
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.CheckForNull;
 
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.IgnoreSave;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
 import com.googlecode.objectify.annotation.Parent;
 import com.googlecode.objectify.annotation.Unindex;
 import com.twitterlite.models.base.BaseModel;
+import com.twitterlite.util.CompactIdList;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 import static com.google.common.base.Preconditions.*;
 
+/*
+ * The followers of a user: the number of shards they are written in, see UserFollowersShard,
+ * and the followers written in the index itself before it was sharded, until they are moved
+ * to the shards by UserManager.migrateFollowIndexes
+ */
 @Entity(name = "U_Followers")
 @Cache
 @Unindex
 public class UserFollowersIndex extends BaseModel{
 
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	// each user has only one index which has a well-known id
+	public static final long ID = 1;
+	
 	@Id
 	@CheckForNull 
 	private Long id = null;
@@ -33,13 +51,37 @@ public class UserFollowersIndex extends BaseModel{
 	@Parent
 	Key<User> user;
 	
-	@Index
+	// the ids of the followers, stored as a blob which is decoded in a primitive array
+	@Ignore
+	@CheckForNull
+	private CompactIdList followersList;
+	@CheckForNull
+	private byte[] followersBlob;
+	// the list of the previous version, converted when loaded
+	@IgnoreSave
+	@CheckForNull
 	private List<Key<User>> followers;
+	@Ignore
+	private boolean previousVersion;
+	
+	// Once the user has too many followers his messages are merged in the timelines 
+	// of his followers when they are read. It is never reset so that the messages 
+	// written in this mode keep being read.
+	@Index
+	private boolean fanOutOnRead;
+	
+	// the number of shards of the followers, doubled when a shard is full or contended,
+	// 0 for the indexes created before the shards
+	private int shardCount;
 	
 	@Override
-	public Key<? extends BaseModel> getKey() {
+	public Key<UserFollowersIndex> getKey() {
 		checkNotNull(this.id);
-		return Key.create(user, this.getClass(), this.id.longValue());
+		return Key.create(user, UserFollowersIndex.class, this.id.longValue());
+	}
+	
+	public static Key<UserFollowersIndex> key(Key<User> user) {
+		return Key.create(user, UserFollowersIndex.class, ID);
 	}
 
 	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
@@ -47,14 +89,108 @@ public class UserFollowersIndex extends BaseModel{
 	
 	public UserFollowersIndex(Key<User> user) {
 		checkNotNull(user);
+		this.id = ID;
 		this.user = user;
 		this.creation = System.currentTimeMillis();
-		this.followers = new LinkedList<>();
+		this.followersList = new CompactIdList();
+		this.shardCount = 1;
+	}
+	@OnLoad
+	void decodeFollowers() {
+		this.followersList = CompactIdList.decode(followersBlob);
+		if (followers != null) {
+			for (Key<User> key : followers)
+				this.followersList.add(key.getId());
+			this.followers = null;
+			this.previousVersion = true;
+		}
+	}
+	@OnSave
+	void encodeFollowers() {
+		CompactIdList list = getFollowersList();
+		this.followersBlob = list.encode();
+	}
+	private CompactIdList getFollowersList() {
+		if (followersList == null)
+			this.followersList = new CompactIdList();
+		return this.followersList;
+	}
+	public boolean isFollower(Key<User> follower) {
+		return getFollowersList().contains(follower.getId());
+	}
+	/*
+	 * Returns false if nothing changed
+	 */
+	public boolean addFollower(Key<User> follower) {
+		return getFollowersList().add(follower.getId());
+	}
+	public boolean removeFollower(Key<User> follower) {
+		return getFollowersList().remove(follower.getId());
+	}
+	/*
+	 * The sorted ids of the followers written in the index before it was sharded
+	 */
+	public long[] getFollowerIds() {
+		return getFollowersList().toArray();
+	}
+	/*
+	 * The followers written in the index before it was sharded
+	 */
+	public int getFollowerCount() {
+		return getFollowersList().size();
+	}
+	public int getShardCount() {
+		return Math.max(1, shardCount);
+	}
+	/*
+	 * Returns false if the shards cannot be multiplied any more.
+	 * The followers are not moved here, they are found in the shards they were written in or moved to, see getShardsOf
+	 */
+	public boolean doubleShards(int maxShards) {
+		if (getShardCount() * 2 > maxShards)
+			return false;
+		this.shardCount = getShardCount() * 2;
+		return true;
+	}
+	/*
+	 * The shard a new follower is written in
+	 */
+	public int shardFor(Key<User> follower) {
+		return shardFor(follower, getShardCount());
+	}
+	private static int shardFor(Key<User> follower, int shardCount) {
+		return (int)((HASH.hashLong(follower.getId()).asLong() & Long.MAX_VALUE) % shardCount);
+	}
+	/*
+	 * The shards a follower may have been written in: the shard counts are powers of 2,
+	 * the follower was written in his shard for one of the previous counts
+	 */
+	public Set<Integer> getShardsOf(Key<User> follower) {
+		Set<Integer> shards = new LinkedHashSet<>();
+		for (int count = getShardCount(); count >= 1; count /= 2)
+			shards.add(shardFor(follower, count));
+		return shards;
+	}
+	public boolean isFanOutOnRead() {
+		return fanOutOnRead;
+	}
+	public void setFanOutOnRead(boolean fanOutOnRead) {
+		this.fanOutOnRead = fanOutOnRead;
+	}
+	/*
+	 * The indexes created before they had a well-known id are moved to it.
+	 * Returns the key of the entity to delete.
+	 */
+	public Key<UserFollowersIndex> moveToWellKnownId() {
+		Key<UserFollowersIndex> previous = getKey();
+		this.id = ID;
+		return previous;
 	}
-	public List<Key<User>> getFollowers() {
-		if (followers == null)
-			this.followers = new LinkedList<>();
-		return this.followers;
+	/*
+	 * Whether the index was loaded in the format of the previous version, it is converted when saved
+	 */
+	public boolean isPreviousVersion() {
+		return previousVersion;
 	}
 	public Long getId() {
 		checkNotNull(this.id);
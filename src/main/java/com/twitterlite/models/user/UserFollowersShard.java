@@ -0,0 +1,145 @@
+package com.twitterlite.models.user;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.IgnoreLoad;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
+import com.googlecode.objectify.annotation.Unindex;
+import com.twitterlite.models.base.BaseModel;
+import com.twitterlite.util.CompactIdList;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * A part of the followers of a user, chosen by a hash of their id (see UserFollowersIndex.shardFor).
+ *
+ * The shards are root entities, each one in its own entity group, so that the new followers
+ * of a popular user do not all write the same entity group. The id is the id of the user and the shard number.
+ */
+@Entity(name = "U_FollowersShard")
+@Cache
+@Unindex
+public class UserFollowersShard extends BaseModel {
+
+	@Id
+	@CheckForNull
+	private String id = null;
+
+	Key<User> user;
+	private int shard;
+
+	@Ignore
+	@CheckForNull
+	private CompactIdList followersList;
+	@CheckForNull
+	private byte[] followersBlob;
+	// the same ids, indexed for the queries, never loaded
+	@Index
+	@IgnoreLoad
+	@CheckForNull
+	private List<Long> followerIds;
+
+	// the same as in the UserFollowersIndex of the user, on every shard for the queries
+	@Index
+	private boolean fanOutOnRead;
+
+	@Override
+	public Key<UserFollowersShard> getKey() {
+		checkNotNull(this.id);
+		return Key.create(UserFollowersShard.class, this.id);
+	}
+
+	public static Key<UserFollowersShard> key(Key<User> user, int shard) {
+		return Key.create(UserFollowersShard.class, user.getId() + ":" + shard);
+	}
+
+	/*
+	 * The keys of the shards 0 to count - 1
+	 */
+	public static List<Key<UserFollowersShard>> keys(Key<User> user, int count) {
+		List<Key<UserFollowersShard>> keys = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			keys.add(key(user, i));
+		return keys;
+	}
+
+	/*
+	 * The user of a shard found by a keys only query
+	 */
+	public static Key<User> userOf(Key<UserFollowersShard> key) {
+		String name = key.getName();
+		return Key.create(User.class, Long.parseLong(name.substring(0, name.indexOf(':'))));
+	}
+
+	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
+	UserFollowersShard() {}
+
+	public UserFollowersShard(Key<User> user, int shard, boolean fanOutOnRead) {
+		checkNotNull(user);
+		this.id = user.getId() + ":" + shard;
+		this.user = user;
+		this.shard = shard;
+		this.fanOutOnRead = fanOutOnRead;
+		this.followersList = new CompactIdList();
+	}
+	@OnLoad
+	void decodeFollowers() {
+		this.followersList = CompactIdList.decode(followersBlob);
+	}
+	@OnSave
+	void encodeFollowers() {
+		CompactIdList list = getFollowersList();
+		this.followersBlob = list.encode();
+		this.followerIds = list.toList();
+	}
+	private CompactIdList getFollowersList() {
+		if (followersList == null)
+			this.followersList = new CompactIdList();
+		return this.followersList;
+	}
+	public boolean isFollower(Key<User> follower) {
+		return getFollowersList().contains(follower.getId());
+	}
+	/*
+	 * Returns false if nothing changed
+	 */
+	public boolean addFollower(Key<User> follower) {
+		return getFollowersList().add(follower.getId());
+	}
+	public boolean removeFollower(Key<User> follower) {
+		return getFollowersList().remove(follower.getId());
+	}
+	public int getFollowerCount() {
+		return getFollowersList().size();
+	}
+	/*
+	 * The sorted ids of the followers
+	 */
+	public long[] getFollowerIds() {
+		return getFollowersList().toArray();
+	}
+	public boolean isFanOutOnRead() {
+		return fanOutOnRead;
+	}
+	public void setFanOutOnRead(boolean fanOutOnRead) {
+		this.fanOutOnRead = fanOutOnRead;
+	}
+	public Key<User> getUser() {
+		return user;
+	}
+	public int getShard() {
+		return shard;
+	}
+}
@@ -0,0 +1,132 @@
+package com.twitterlite.models.user;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Unindex;
+import com.twitterlite.models.base.BaseModel;
+import com.twitterlite.models.message.Message;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * The materialized home timeline of a user: the keys of the most recent messages
+ * the user received, most recent first, with their creation time.
+ * 
+ * There is only one timeline per user so it is read with a get by key. It is a root entity with the id
+ * of the user, so that the fan-out writes don't contend with the writes of the entity group of the user
+ * (follows, profile updates). The timelines written under the user before are not read any more:
+ * the missing timelines are rebuilt from the MessageReceiversIndex.
+ * When older messages have been dropped (or were never added) the timeline is truncated 
+ * and the pages going past its end must be read from the MessageReceiversIndex.
+ */
+@Entity(name = "U_TimeLine")
+@Cache
+@Unindex
+public class UserTimeLine extends BaseModel {
+
+	public static final int CAPACITY = 200;
+	
+	@Id
+	@CheckForNull 
+	private Long id = null;
+	
+	Key<User> user;
+	
+	// both lists are sorted on the creation, most recent first
+	private List<Key<Message>> messages;
+	private List<Long> creations;
+	
+	private boolean truncated;
+	
+	@Override
+	public Key<UserTimeLine> getKey() {
+		checkNotNull(this.id);
+		return Key.create(UserTimeLine.class, this.id.longValue());
+	}
+	
+	public static Key<UserTimeLine> key(Key<User> user) {
+		return Key.create(UserTimeLine.class, user.getId());
+	}
+	
+	/*
+	 * The key of the timeline written under the user before
+	 */
+	public static Key<UserTimeLine> previousKey(Key<User> user) {
+		return Key.create(user, UserTimeLine.class, 1);
+	}
+
+	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
+	UserTimeLine() {}
+	
+	public UserTimeLine(Key<User> user, boolean truncated) {
+		checkNotNull(user);
+		this.id = user.getId();
+		this.user = user;
+		this.messages = new ArrayList<>();
+		this.creations = new ArrayList<>();
+		this.truncated = truncated;
+	}
+	
+	/*
+	 * Returns false if the message is already in the timeline or too old to be kept
+	 */
+	public boolean add(Key<Message> message, long creation) {
+		checkNotNull(message);
+		List<Key<Message>> msgs = getMessages();
+		List<Long> times = getCreations();
+		if (msgs.contains(message))
+			return false;
+		
+		int i = 0;
+		while (i < times.size() && times.get(i).longValue() >= creation)
+			i++;
+		if (i >= CAPACITY) {
+			this.truncated = true;
+			return false;
+		}
+		msgs.add(i, message);
+		times.add(i, creation);
+		
+		while (msgs.size() > CAPACITY) {
+			msgs.remove(msgs.size() - 1);
+			times.remove(times.size() - 1);
+			this.truncated = true;
+		}
+		return true;
+	}
+	
+	public boolean remove(Key<Message> message) {
+		int i = getMessages().indexOf(message);
+		if (i < 0)
+			return false;
+		getMessages().remove(i);
+		getCreations().remove(i);
+		return true;
+	}
+	
+	public List<Key<Message>> getMessages() {
+		if (this.messages == null)
+			this.messages = new ArrayList<>();
+		return this.messages;
+	}
+	public List<Long> getCreations() {
+		if (this.creations == null)
+			this.creations = new ArrayList<>();
+		return this.creations;
+	}
+	public boolean isTruncated() {
+		return truncated;
+	}
+	public Key<User> getUser() {
+		return user;
+	}
+}
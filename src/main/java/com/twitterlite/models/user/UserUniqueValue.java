@@ -0,0 +1,87 @@
+package com.twitterlite.models.user;
+
+import java.util.Locale;
+
+import javax.annotation.CheckForNull;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Unindex;
+import com.twitterlite.models.base.BaseModel;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * Reserves a login or an email for a user: the key is the normalized value,
+ * so the uniqueness is checked with a get in the transaction saving the user
+ * instead of a global query, which is not consistent.
+ *
+ * These are root entities, each one in its own entity group.
+ * The entity of MIGRATED_ID, without user, records that the users created
+ * before the reservations have been migrated.
+ */
+@Entity(name = "U_unique")
+@Cache
+@Unindex
+public class UserUniqueValue extends BaseModel {
+
+	private static final String LOGIN_PREFIX = "login:";
+	private static final String EMAIL_PREFIX = "email:";
+	private static final String MIGRATED_ID = "migrated";
+
+	@Id
+	@CheckForNull
+	private String id = null;
+
+	@CheckForNull
+	private Key<User> user;
+
+	@Override
+	public Key<UserUniqueValue> getKey() {
+		checkNotNull(this.id);
+		return Key.create(UserUniqueValue.class, this.id);
+	}
+
+	public static String normalize(String value) {
+		return value.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	public static Key<UserUniqueValue> loginKey(String login) {
+		checkNotNull(login);
+		return Key.create(UserUniqueValue.class, LOGIN_PREFIX + normalize(login));
+	}
+
+	public static Key<UserUniqueValue> emailKey(String email) {
+		checkNotNull(email);
+		return Key.create(UserUniqueValue.class, EMAIL_PREFIX + normalize(email));
+	}
+
+	public static Key<UserUniqueValue> migratedKey() {
+		return Key.create(UserUniqueValue.class, MIGRATED_ID);
+	}
+
+	public static UserUniqueValue migrated() {
+		UserUniqueValue migrated = new UserUniqueValue();
+		migrated.id = MIGRATED_ID;
+		return migrated;
+	}
+
+	@SuppressFBWarnings(value = "NP_NONNULL_FIELD_NOT_INITIALIZED_IN_CONSTRUCTOR", justification = "Objectify")
+	UserUniqueValue() {}
+
+	public UserUniqueValue(Key<UserUniqueValue> key, Key<User> user) {
+		checkNotNull(key);
+		checkNotNull(user);
+		this.id = key.getName();
+		this.user = user;
+	}
+
+	public Key<User> getUser() {
+		checkState(user != null, "Not a reservation");
+		return user;
+	}
+}
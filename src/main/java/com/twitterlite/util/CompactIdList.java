@@ -0,0 +1,133 @@
+package com.twitterlite.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * A sorted set of positive ids kept in a primitive array.
+ *
+ * It is stored as a blob: the number of ids, the first id, then the differences
+ * between consecutive ids, each one as a varint (7 bits per byte, the high bit set
+ * on all the bytes but the last). The ids of the users being allocated close to each other,
+ * most of the differences fit in 2 or 3 bytes.
+ */
+public class CompactIdList {
+
+	private long[] ids;
+	private int size;
+
+	public CompactIdList() {
+		this.ids = new long[4];
+		this.size = 0;
+	}
+
+	private CompactIdList(long[] ids) {
+		this.ids = ids;
+		this.size = ids.length;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long get(int i) {
+		checkElementIndex(i, size);
+		return ids[i];
+	}
+
+	public boolean contains(long id) {
+		return Arrays.binarySearch(ids, 0, size, id) >= 0;
+	}
+
+	/*
+	 * Returns false if the id was already there
+	 */
+	public boolean add(long id) {
+		checkArgument(id > 0);
+		int i = Arrays.binarySearch(ids, 0, size, id);
+		if (i >= 0)
+			return false;
+		i = -i - 1;
+		if (size == ids.length)
+			ids = Arrays.copyOf(ids, Math.max(4, 2 * size));
+		System.arraycopy(ids, i, ids, i + 1, size - i);
+		ids[i] = id;
+		size++;
+		return true;
+	}
+
+	public boolean remove(long id) {
+		int i = Arrays.binarySearch(ids, 0, size, id);
+		if (i < 0)
+			return false;
+		System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+		size--;
+		return true;
+	}
+
+	public long[] toArray() {
+		return Arrays.copyOf(ids, size);
+	}
+
+	public List<Long> toList() {
+		List<Long> list = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			list.add(Long.valueOf(ids[i]));
+		return list;
+	}
+
+	public byte[] encode() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1 + 3 * size);
+		writeVarint(out, size);
+		long previous = 0;
+		for (int i = 0; i < size; i++) {
+			writeVarint(out, ids[i] - previous);
+			previous = ids[i];
+		}
+		return out.toByteArray();
+	}
+
+	/*
+	 * A null blob is an empty list
+	 */
+	public static CompactIdList decode(@CheckForNull byte[] blob) {
+		if (blob == null || blob.length == 0)
+			return new CompactIdList();
+		int[] pos = new int[1];
+		int count = (int)readVarint(blob, pos);
+		checkArgument(count >= 0, "Invalid id list");
+		long[] ids = new long[count];
+		long previous = 0;
+		for (int i = 0; i < count; i++) {
+			previous += readVarint(blob, pos);
+			ids[i] = previous;
+		}
+		return new CompactIdList(ids);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+
+	private static long readVarint(byte[] blob, int[] pos) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			checkArgument(pos[0] < blob.length, "Truncated id list");
+			byte b = blob[pos[0]++];
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Invalid id list");
+	}
+}
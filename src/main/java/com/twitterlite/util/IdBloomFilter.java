@@ -0,0 +1,87 @@
+package com.twitterlite.util;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * A Bloom filter of ids: mightContain never answers false for an id which was put,
+ * and answers true for an id which was not put with about the false positive rate
+ * it was sized for, as long as no more ids than its capacity were put.
+ *
+ * The bit positions are derived from one 128 bits murmur3 hash, as in Guava's BloomFilter,
+ * but the bits can be stored as bytes: the number of hash functions then the bits.
+ */
+public class IdBloomFilter {
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final long[] bits;
+	private final int hashes;
+
+	public IdBloomFilter(int capacity, double falsePositiveRate) {
+		checkArgument(capacity > 0);
+		checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1);
+		long bitCount = (long)Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		this.bits = new long[(int)Math.max(1, (bitCount + 63) / 64)];
+		this.hashes = Math.max(1, (int)Math.round((double)bitCount / capacity * Math.log(2)));
+	}
+
+	private IdBloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.hashes = hashes;
+	}
+
+	public void put(long id) {
+		long bitSize = 64L * bits.length;
+		long[] h = hash(id);
+		for (int i = 1; i <= hashes; i++) {
+			long bit = ((h[0] + i * h[1]) & Long.MAX_VALUE) % bitSize;
+			bits[(int)(bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	public boolean mightContain(long id) {
+		long bitSize = 64L * bits.length;
+		long[] h = hash(id);
+		for (int i = 1; i <= hashes; i++) {
+			long bit = ((h[0] + i * h[1]) & Long.MAX_VALUE) % bitSize;
+			if ((bits[(int)(bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static long[] hash(long id) {
+		HashCode code = HASH.hashLong(id);
+		ByteBuffer buffer = ByteBuffer.wrap(code.asBytes());
+		return new long[] { buffer.getLong(), buffer.getLong() };
+	}
+
+	public int getBitCount() {
+		return 64 * bits.length;
+	}
+
+	public byte[] toBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 8 * bits.length);
+		buffer.put((byte)hashes);
+		for (long word : bits)
+			buffer.putLong(word);
+		return buffer.array();
+	}
+
+	public static IdBloomFilter fromBytes(byte[] bytes) {
+		checkArgument(bytes.length > 1 && (bytes.length - 1) % 8 == 0, "Invalid filter");
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		int hashes = buffer.get();
+		checkArgument(hashes > 0, "Invalid filter");
+		long[] bits = new long[(bytes.length - 1) / 8];
+		for (int i = 0; i < bits.length; i++)
+			bits[i] = buffer.getLong();
+		return new IdBloomFilter(bits, hashes);
+	}
+}
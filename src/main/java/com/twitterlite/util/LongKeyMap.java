@@ -0,0 +1,102 @@
+package com.twitterlite.util;
+
+import java.util.Arrays;
+
+import javax.annotation.CheckForNull;
+
+import static com.google.common.base.Preconditions.*;
+
+/*
+ * A map from long keys to non null values, without boxing the keys: the keys and the values
+ * are held in two arrays, the slots are found by linear probing from the mixed key.
+ * A slot is free when its value is null. The entries are not removed one by one.
+ *
+ * Not synchronized.
+ */
+public class LongKeyMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	public LongKeyMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongKeyMap(int expectedSize) {
+		checkArgument(expectedSize >= 0);
+		int capacity = MIN_CAPACITY;
+		// filled at three quarters at most
+		while (capacity * 3 / 4 < expectedSize)
+			capacity <<= 1;
+		this.keys = new long[capacity];
+		this.values = new Object[capacity];
+	}
+
+	// the finalizer of murmur3, the ids of the users are close to each other
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	private int slot(long key) {
+		int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		while (values[i] != null && keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	@SuppressWarnings("unchecked")
+	public @CheckForNull V get(long key) {
+		return (V)values[slot(key)];
+	}
+
+	public boolean containsKey(long key) {
+		return values[slot(key)] != null;
+	}
+
+	/*
+	 * Returns the previous value of the key
+	 */
+	@SuppressWarnings("unchecked")
+	public @CheckForNull V put(long key, V value) {
+		checkNotNull(value);
+		int i = slot(key);
+		V previous = (V)values[i];
+		keys[i] = key;
+		values[i] = value;
+		if (previous == null && ++size > keys.length * 3 / 4)
+			resize(keys.length << 1);
+		return previous;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] == null)
+				continue;
+			int i = slot(oldKeys[j]);
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+}
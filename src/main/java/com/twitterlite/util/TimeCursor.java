@@ -0,0 +1,53 @@
+package com.twitterlite.util;
+
+import javax.annotation.CheckForNull;
+
+/*
+ * The position in a timeline which is not read from a single query: 
+ * the creation time and the id of the last message of the page.
+ * The id breaks the ties between the messages created at the same time.
+ */
+public class TimeCursor {
+
+	public static final TimeCursor START = new TimeCursor(Long.MAX_VALUE, Long.MAX_VALUE);
+	
+	private final long creation;
+	private final long id;
+	
+	public TimeCursor(long creation, long id) {
+		this.creation = creation;
+		this.id = id;
+	}
+	
+	/*
+	 * Whether a message comes after the cursor in a timeline sorted on the creation then the id, most recent first
+	 */
+	public boolean isBefore(long msgCreation, long msgId) {
+		return msgCreation < this.creation || (msgCreation == this.creation && msgId < this.id);
+	}
+	
+	public String encode() {
+		return Long.toString(creation, Character.MAX_RADIX) + ":" + Long.toString(id, Character.MAX_RADIX);
+	}
+	
+	public static TimeCursor safeFromEncodedString(@CheckForNull String encodedCursor) {
+		if (encodedCursor == null)
+			return START;
+		try {
+			int sep = encodedCursor.indexOf(':');
+			if (sep < 0)
+				return START;
+			return new TimeCursor(Long.parseLong(encodedCursor.substring(0, sep), Character.MAX_RADIX), 
+									Long.parseLong(encodedCursor.substring(sep + 1), Character.MAX_RADIX));
+		} catch (NumberFormatException e) {
+			return START;
+		}
+	}
+	
+	public long getCreation() {
+		return creation;
+	}
+	public long getId() {
+		return id;
+	}
+}
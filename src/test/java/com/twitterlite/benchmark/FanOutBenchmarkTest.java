@@ -0,0 +1,229 @@
+package com.twitterlite.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.servlet.ServletModule;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Ref;
+import com.twitterlite.config.TwitterLiteManagerModule;
+import com.twitterlite.managers.ListChunk;
+import com.twitterlite.managers.MessageManager;
+import com.twitterlite.managers.UserManager;
+import com.twitterlite.models.message.Message;
+import com.twitterlite.models.user.User;
+import com.twitterlite.testing.CountingDelegate;
+
+/*
+ * Measures the fan-out on the local App Engine services.
+ *
+ * A power-law follow graph is generated, then the messages are posted in rounds:
+ * after each round the task queue is drained synchronously, running the DeferredTask chains
+ * (fan-out, backfill) until the queue is empty. The countdown of the tasks is ignored,
+ * so the delivery lag does not include the coalescing window.
+ *
+ * The benchmark runs with -Dtwitterlite.benchmark=true (mvn test -P benchmark), the scale is set with
+ * the twitterlite.benchmark.* system properties. The graph and the posts only depend on the seed.
+ * Otherwise it runs at a small scale with the other tests: the posts go through the injected managers,
+ * as the controllers call them.
+ */
+public class FanOutBenchmarkTest {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("twitterlite.benchmark");
+	private static final int USERS = Integer.getInteger("twitterlite.benchmark.users", BENCHMARK ? 500 : 30);
+	private static final int MEAN_FOLLOWED = Integer.getInteger("twitterlite.benchmark.meanFollowed", BENCHMARK ? 20 : 5);
+	private static final double ALPHA = Double.parseDouble(System.getProperty("twitterlite.benchmark.alpha", "1.1"));
+	private static final int POSTS = Integer.getInteger("twitterlite.benchmark.posts", BENCHMARK ? 1000 : 40);
+	private static final int POSTS_PER_ROUND = Integer.getInteger("twitterlite.benchmark.postsPerRound", BENCHMARK ? 50 : 10);
+	private static final int READS = Integer.getInteger("twitterlite.benchmark.reads", BENCHMARK ? 200 : 10);
+	private static final int PAGE_SIZE = Integer.getInteger("twitterlite.benchmark.pageSize", 20);
+	private static final long SEED = Long.getLong("twitterlite.benchmark.seed", 42);
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(	new LocalDatastoreServiceTestConfig(),
+																				new LocalMemcacheServiceTestConfig(),
+																				new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+	private LocalTaskQueue taskQueue;
+	private UserManager userManager;
+	private MessageManager msgManager;
+	private Random random;
+
+	/*
+	 * Picks the users with a probability proportional to 1 / rank^alpha
+	 */
+	private static class PowerLawSampler {
+		private final double[] cumulative;
+
+		PowerLawSampler(int size, double alpha) {
+			cumulative = new double[size];
+			double sum = 0;
+			for (int i = 0; i < size; i++) {
+				sum += 1 / Math.pow(i + 1, alpha);
+				cumulative[i] = sum;
+			}
+			for (int i = 0; i < size; i++)
+				cumulative[i] /= sum;
+		}
+
+		int next(Random random) {
+			double r = random.nextDouble();
+			int i = Arrays.binarySearch(cumulative, r);
+			return i >= 0 ? i : Math.min(-i - 1, cumulative.length - 1);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put("com.google.appengine.runtime.default_version_hostname", "localhost:8080");
+		helper.setEnvAttributes(attributes);
+		helper.setUp();
+
+		// the local services are looked up from the original delegate
+		taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+
+		Injector injector = Guice.createInjector(new ServletModule(), new TwitterLiteManagerModule());
+		userManager = injector.getInstance(UserManager.class);
+		msgManager = injector.getInstance(MessageManager.class);
+		random = new Random(SEED);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		helper.tearDown();
+	}
+
+	/*
+	 * Runs the queued tasks, and the tasks they queue, until the queue is empty.
+	 * Returns the number of tasks run.
+	 */
+	private int drainQueue() throws Exception {
+		String queueName = QueueFactory.getDefaultQueue().getQueueName();
+		int run = 0;
+		while (true) {
+			QueueStateInfo state = taskQueue.getQueueStateInfo().get(queueName);
+			if (state == null || state.getTaskInfo().isEmpty())
+				return run;
+			for (TaskStateInfo info : state.getTaskInfo()) {
+				taskQueue.deleteTask(queueName, info.getTaskName());
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(info.getBodyAsBytes()));
+				try {
+					((DeferredTask) in.readObject()).run();
+				} finally {
+					in.close();
+				}
+				run++;
+			}
+		}
+	}
+
+	private List<Key<User>> createGraph() throws Exception {
+		List<Key<User>> users = new ArrayList<>(USERS);
+		for (int i = 0; i < USERS; i++)
+			users.add(userManager.create("bench-" + i, "bench-" + i + "@twitterlite.com").read().getKey());
+
+		PowerLawSampler popularity = new PowerLawSampler(USERS, ALPHA);
+		int follows = 0;
+		for (int i = 0; i < USERS; i++) {
+			int count = 1 + random.nextInt(2 * MEAN_FOLLOWED);
+			Set<Integer> followed = new HashSet<>();
+			// a few attempts only, the most popular users are drawn again and again
+			for (int attempt = 0; attempt < 3 * count && followed.size() < count; attempt++) {
+				int j = popularity.next(random);
+				if (j != i && followed.add(j)) {
+					userManager.followUser(users.get(i), users.get(j));
+					follows++;
+				}
+			}
+		}
+		drainQueue();
+		System.out.println(String.format("graph: %d users, %d follows, alpha %.2f", USERS, follows, ALPHA));
+		return users;
+	}
+
+	private static long percentile(List<Long> sorted, double p) {
+		if (sorted.isEmpty())
+			return 0;
+		int i = (int) Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1)));
+	}
+
+	@Test
+	public void benchmarkFanOut() throws Exception {
+		List<Key<User>> users = createGraph();
+		PowerLawSampler posters = new PowerLawSampler(USERS, ALPHA);
+
+		Delegate<?> original = ApiProxy.getDelegate();
+		CountingDelegate counting = new CountingDelegate(original);
+		List<Long> lags = new ArrayList<>(POSTS);
+		int tasks = 0;
+		long start = System.currentTimeMillis();
+		ApiProxy.setDelegate(counting);
+		try {
+			int posted = 0;
+			while (posted < POSTS) {
+				List<Long> postTimes = new ArrayList<>(POSTS_PER_ROUND);
+				for (int i = 0; i < POSTS_PER_ROUND && posted < POSTS; i++, posted++) {
+					Key<User> sender = users.get(posters.next(random));
+					msgManager.create("benchmark message " + posted, Ref.create(sender));
+					postTimes.add(System.currentTimeMillis());
+				}
+				tasks += drainQueue();
+				long delivered = System.currentTimeMillis();
+				for (Long postTime : postTimes)
+					lags.add(delivered - postTime);
+			}
+		} finally {
+			ApiProxy.setDelegate(original);
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+		List<Long> reads = new ArrayList<>(READS);
+		int messagesRead = 0;
+		for (int i = 0; i < READS; i++) {
+			Key<User> reader = users.get(random.nextInt(USERS));
+			long readStart = System.nanoTime();
+			ListChunk<Message> page = msgManager.getUserTimeLine(null, PAGE_SIZE, reader);
+			msgManager.getUserTimeLine(page.getEncodedCursor(), PAGE_SIZE, reader);
+			reads.add((System.nanoTime() - readStart) / 2000);
+			messagesRead += page.getChunk().size();
+		}
+		Collections.sort(lags);
+		Collections.sort(reads);
+
+		System.out.println(String.format("posts: %d in %d ms, %.1f posts/s, %d tasks", POSTS, elapsed, POSTS * 1000.0 / elapsed, tasks));
+		System.out.println(String.format("delivery lag (ms): p50 %d, p95 %d, max %d", percentile(lags, 0.5), percentile(lags, 0.95), percentile(lags, 1)));
+		System.out.println(String.format("datastore calls per post: %.1f %s", counting.getTotal() / (double) POSTS, counting.getCalls()));
+		System.out.println(String.format("timeline page read (us): p50 %d, p95 %d, max %d", percentile(reads, 0.5), percentile(reads, 0.95), percentile(reads, 1)));
+
+		Assert.assertEquals(POSTS, lags.size());
+		Assert.assertTrue("no message delivered", messagesRead > 0);
+	}
+}
@@ -0,0 +1,91 @@
+package com.twitterlite.managers.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.servlet.ServletModule;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Ref;
+import com.twitterlite.config.TwitterLiteManagerModule;
+import com.twitterlite.managers.MessageManager;
+import com.twitterlite.managers.UserManager;
+import com.twitterlite.managers.impl.MessageManagerImpl.FanOutPendingMessagesTask;
+import com.twitterlite.models.message.Message;
+import com.twitterlite.models.user.User;
+import com.twitterlite.models.user.UserCounterShard.Counter;
+
+/*
+ * The posts go through the managers of the injector, with their interceptors
+ */
+public class MessageManagerImplTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(	new LocalDatastoreServiceTestConfig(),
+																				new LocalMemcacheServiceTestConfig(),
+																				new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+	
+	private LocalTaskQueue taskQueue;
+	private UserManager userManager;
+	private MessageManager msgManager;
+	
+	@Before
+	public void setUp() throws Exception {
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put("com.google.appengine.runtime.default_version_hostname", "localhost:8080");
+		helper.setEnvAttributes(attributes);
+		helper.setUp();
+		taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+		
+		Injector injector = Guice.createInjector(new ServletModule(), new TwitterLiteManagerModule());
+		userManager = injector.getInstance(UserManager.class);
+		msgManager = injector.getInstance(MessageManager.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		helper.tearDown();
+	}
+	
+	private Set<String> queuedTaskNames() {
+		Set<String> names = new HashSet<>();
+		QueueStateInfo state = taskQueue.getQueueStateInfo().get(QueueFactory.getDefaultQueue().getQueueName());
+		if (state != null)
+			for (TaskStateInfo info : state.getTaskInfo())
+				names.add(info.getTaskName());
+		return names;
+	}
+	
+	@Test
+	public void testCreateAddsNamedTasksAfterTheCommit() {
+		Key<User> sender = userManager.create("sender", "sender@twitterlite.com").read().getKey();
+		
+		Message first = msgManager.create("first message", Ref.create(sender)).read();
+		Message second = msgManager.create("second message", Ref.create(sender)).read();
+		
+		Assert.assertNotNull(msgManager.getAsync(first.getKey()).now());
+		Assert.assertNotNull(msgManager.getAsync(second.getKey()).now());
+		// the fan-out task of the window of each post, added once per window
+		Set<String> names = queuedTaskNames();
+		Assert.assertTrue(names.contains(FanOutPendingMessagesTask.name(sender, FanOutPendingMessagesTask.windowOf(first.getCreation()))));
+		Assert.assertTrue(names.contains(FanOutPendingMessagesTask.name(sender, FanOutPendingMessagesTask.windowOf(second.getCreation()))));
+		// each post counted once
+		Assert.assertEquals(2, userManager.getCounts(Collections.singletonList(sender)).now().get(sender).get(Counter.MESSAGES));
+	}
+}
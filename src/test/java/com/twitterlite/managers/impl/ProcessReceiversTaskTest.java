@@ -0,0 +1,116 @@
+package com.twitterlite.managers.impl;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Ref;
+import com.twitterlite.managers.impl.MessageManagerImpl.ProcessReceiversTask;
+import com.twitterlite.models.message.Message;
+import com.twitterlite.models.message.MessageReceiversIndex;
+import com.twitterlite.models.user.User;
+import com.twitterlite.models.user.UserFollowedIndex;
+import com.twitterlite.models.user.UserFollowersIndex;
+import com.twitterlite.models.user.UserTimeLine;
+import com.twitterlite.testing.CountingDelegate;
+
+public class ProcessReceiversTaskTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(	new LocalDatastoreServiceTestConfig(),
+																				new LocalMemcacheServiceTestConfig(),
+																				new LocalTaskQueueTestConfig());
+	
+	@Before
+	public void setUp() throws Exception {
+		helper.setUp();
+		ObjectifyService.register(User.class);
+		ObjectifyService.register(UserFollowedIndex.class);
+		ObjectifyService.register(UserFollowersIndex.class);
+		ObjectifyService.register(UserTimeLine.class);
+		ObjectifyService.register(Message.class);
+		ObjectifyService.register(MessageReceiversIndex.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		helper.tearDown();
+	}
+	
+	private Key<User> createUser(String login) {
+		Key<User> key = ofy().save().entity(new User(login, login + "@twitterlite.com")).now();
+		ofy().save().entity(new UserTimeLine(key, false)).now();
+		return key;
+	}
+	
+	private void createMessages(Key<User> sender, int count) {
+		for (int i = 0; i < count; i++) {
+			Message msg = new Message("message " + i, Ref.create(sender));
+			Key<Message> msgKey = ofy().save().entity(msg).now();
+			ofy().save().entity(new MessageReceiversIndex(msgKey, sender, msg.getCreation())).now();
+		}
+	}
+	
+	/*
+	 * The datastore calls made to add the receiver to one page of the sender messages
+	 */
+	private int countAddPageCalls(Key<User> sender, Key<User> receiver, int pageSize) {
+		ProcessReceiversTask task = new ProcessReceiversTask(true, sender, receiver, null, new FanOutBatchSizer(pageSize, pageSize));
+		Delegate<?> original = ApiProxy.getDelegate();
+		CountingDelegate counting = new CountingDelegate(original);
+		ApiProxy.setDelegate(counting);
+		try {
+			task.run();
+		} finally {
+			ApiProxy.setDelegate(original);
+		}
+		return counting.getTotal();
+	}
+	
+	@Test
+	public void testAddPageCallsDoNotDependOnPageSize() {
+		Key<User> smallSender = createUser("small");
+		Key<User> bigSender = createUser("big");
+		Key<User> receiver = createUser("receiver");
+		createMessages(smallSender, 5);
+		createMessages(bigSender, 25);
+		
+		// both fit in one page
+		int smallPageCalls = countAddPageCalls(smallSender, receiver, 50);
+		int bigPageCalls = countAddPageCalls(bigSender, receiver, 50);
+		
+		// query + batch get of the head shards + batch put + timeline transaction
+		Assert.assertEquals(smallPageCalls, bigPageCalls);
+		Assert.assertTrue("too many datastore calls for a page: " + bigPageCalls, bigPageCalls <= 8);
+		
+		// every head shard got the receiver
+		List<MessageReceiversIndex> heads = ofy().load().type(MessageReceiversIndex.class).filter("receivers", receiver).list();
+		Assert.assertEquals(30, heads.size());
+		Assert.assertEquals(30, ofy().load().key(UserTimeLine.key(receiver)).now().getMessages().size());
+	}
+	
+	@Test
+	public void testRemoveReceiver() {
+		Key<User> sender = createUser("sender");
+		Key<User> receiver = createUser("receiver");
+		createMessages(sender, 10);
+		countAddPageCalls(sender, receiver, 50);
+		
+		new ProcessReceiversTask(false, sender, receiver, null, new FanOutBatchSizer(50, 50)).run();
+		
+		Assert.assertEquals(0, ofy().load().type(MessageReceiversIndex.class).filter("receivers", receiver).count());
+		Assert.assertEquals(0, ofy().load().key(UserTimeLine.key(receiver)).now().getMessages().size());
+	}
+}
@@ -0,0 +1,70 @@
+package com.twitterlite.testing;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+/*
+ * Counts the calls made to the datastore service, per method (Get, Put, RunQuery, Commit...),
+ * set as the ApiProxy delegate around the code measured by a test
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class CountingDelegate implements Delegate<Environment> {
+	
+	private static final String DATASTORE = "datastore_v3";
+	
+	private final Delegate<Environment> delegate;
+	private final Map<String, Integer> calls = new TreeMap<>();
+	
+	public CountingDelegate(Delegate delegate) {
+		this.delegate = delegate;
+	}
+	
+	private synchronized void count(String packageName, String methodName) {
+		if (!DATASTORE.equals(packageName))
+			return;
+		Integer count = calls.get(methodName);
+		calls.put(methodName, count == null ? 1 : count + 1);
+	}
+	
+	public synchronized int getTotal() {
+		int total = 0;
+		for (Integer count : calls.values())
+			total += count;
+		return total;
+	}
+	
+	public synchronized Map<String, Integer> getCalls() {
+		return new TreeMap<>(calls);
+	}
+	
+	@Override
+	public byte[] makeSyncCall(Environment env, String packageName, String methodName, byte[] request) throws ApiProxyException {
+		count(packageName, methodName);
+		return delegate.makeSyncCall(env, packageName, methodName, request);
+	}
+	@Override
+	public Future<byte[]> makeAsyncCall(Environment env, String packageName, String methodName, byte[] request, ApiConfig apiConfig) {
+		count(packageName, methodName);
+		return delegate.makeAsyncCall(env, packageName, methodName, request, apiConfig);
+	}
+	@Override
+	public void log(Environment env, LogRecord logRecord) {
+		delegate.log(env, logRecord);
+	}
+	@Override
+	public void flushLogs(Environment env) {
+		delegate.flushLogs(env);
+	}
+	@Override
+	public List<Thread> getRequestThreads(Environment env) {
+		return delegate.getRequestThreads(env);
+	}
+}
@@ -0,0 +1,49 @@
+package com.twitterlite.util;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactIdListTest {
+
+	@Test
+	public void testEncodeDecode() {
+		Random random = new Random(7);
+		TreeSet<Long> expected = new TreeSet<>();
+		CompactIdList list = new CompactIdList();
+		for (int i = 0; i < 1000; i++) {
+			long id = 1 + (random.nextBoolean() ? random.nextInt(100000) : random.nextLong() & Long.MAX_VALUE);
+			Assert.assertEquals(expected.add(id), list.add(id));
+		}
+		for (Long id : expected.toArray(new Long[0]))
+			if (random.nextInt(4) == 0) {
+				expected.remove(id);
+				Assert.assertTrue(list.remove(id.longValue()));
+			}
+
+		CompactIdList decoded = CompactIdList.decode(list.encode());
+		Assert.assertEquals(expected.size(), decoded.size());
+		Assert.assertEquals(Arrays.asList(expected.toArray()), decoded.toList());
+		for (Long id : expected)
+			Assert.assertTrue(decoded.contains(id.longValue()));
+		Assert.assertFalse(decoded.contains(0));
+	}
+
+	@Test
+	public void testEmpty() {
+		Assert.assertEquals(0, CompactIdList.decode(null).size());
+		Assert.assertEquals(0, CompactIdList.decode(new CompactIdList().encode()).size());
+	}
+
+	@Test
+	public void testCloseIdsAreSmall() {
+		CompactIdList list = new CompactIdList();
+		for (long id = 5000000000L; list.size() < 1000; id += 1000)
+			list.add(id);
+		// 2 bytes per difference
+		Assert.assertTrue(list.encode().length < 2100);
+	}
+}
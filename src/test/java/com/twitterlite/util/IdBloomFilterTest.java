@@ -0,0 +1,61 @@
+package com.twitterlite.util;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdBloomFilterTest {
+
+	private static final int TRIALS = 100000;
+
+	/*
+	 * Fills the filter to its capacity and measures the rate of false positives on other ids
+	 */
+	private static double measureFalsePositiveRate(int capacity, double rate, long seed) {
+		Random random = new Random(seed);
+		IdBloomFilter filter = new IdBloomFilter(capacity, rate);
+		Set<Long> put = new HashSet<>();
+		// close ids, as the allocated ids of the users
+		long base = 4000000000L + random.nextInt(1000000);
+		while (put.size() < capacity) {
+			long id = base + random.nextInt(50 * capacity);
+			put.add(id);
+			filter.put(id);
+		}
+		IdBloomFilter decoded = IdBloomFilter.fromBytes(filter.toBytes());
+		for (Long id : put)
+			Assert.assertTrue("false negative", decoded.mightContain(id.longValue()));
+
+		int positives = 0;
+		int trials = 0;
+		while (trials < TRIALS) {
+			long id = base + random.nextInt(100 * capacity);
+			if (put.contains(id))
+				continue;
+			trials++;
+			if (decoded.mightContain(id))
+				positives++;
+		}
+		return positives / (double)trials;
+	}
+
+	@Test
+	public void testFalsePositiveRate() {
+		int[] capacities = { 64, 1000, 20000 };
+		for (int capacity : capacities) {
+			double measured = measureFalsePositiveRate(capacity, 0.01, capacity);
+			System.out.println(String.format("capacity %d: false positive rate %.4f for 0.01", capacity, measured));
+			Assert.assertTrue("false positive rate " + measured, measured < 0.02);
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		IdBloomFilter filter = new IdBloomFilter(64, 0.01);
+		for (long id = 1; id < 1000; id++)
+			Assert.assertFalse(filter.mightContain(id));
+	}
+}
@@ -0,0 +1,37 @@
+package com.twitterlite.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongKeyMapTest {
+
+	@Test
+	public void testPutGet() {
+		Random random = new Random(11);
+		Map<Long, Integer> expected = new HashMap<>();
+		LongKeyMap<Integer> map = new LongKeyMap<>();
+		// close ids, as the allocated ids of the users, and some negative ones
+		long base = 4000000000L;
+		for (int i = 0; i < 10000; i++) {
+			long key = random.nextInt(10) == 0 ? random.nextLong() : base + random.nextInt(20000);
+			Integer value = Integer.valueOf(i);
+			Assert.assertEquals(expected.put(key, value), map.put(key, value));
+		}
+		Assert.assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, Integer> entry : expected.entrySet())
+			Assert.assertEquals(entry.getValue(), map.get(entry.getKey().longValue()));
+		for (int i = 0; i < 10000; i++) {
+			long key = base + 20000 + i;
+			Assert.assertFalse(map.containsKey(key));
+			Assert.assertNull(map.get(key));
+		}
+
+		map.clear();
+		Assert.assertEquals(0, map.size());
+		Assert.assertNull(map.get(base));
+	}
+}